@@ -38,6 +38,8 @@ android {
         targetSdk = 33
         versionCode = 1
         versionName = "1.0"
+
+        testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
     }
 
     buildTypes {
@@ -65,6 +67,12 @@ android {
         jvmTarget = "1.8"
     }
 
+    testOptions {
+        // The download code only logs and reads the clock through the platform,
+        // src/test provides those, anything else can be a no-op
+        unitTests.isReturnDefaultValues = true
+    }
+
     signingConfigs {
         create("release") {
             (keystoreProperties["keyAlias"] as String?)?.let {
@@ -95,6 +103,9 @@ dependencies {
     implementation("androidx.preference:preference:1.2.0")
     implementation("androidx.recyclerview:recyclerview:1.2.1")
     implementation("com.google.android.material:material:1.9.0-alpha01")
+
+    testImplementation("junit:junit:4.13.2")
+    androidTestImplementation("androidx.test:runner:1.5.2")
 }
 
 configure<GenerateBpPluginExtension> {
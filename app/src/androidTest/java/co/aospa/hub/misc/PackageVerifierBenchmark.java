@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.os.RecoverySystem;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Times the verification of an update package by PackageVerifier and by a plain
+ * RecoverySystem.verifyPackage() pass, the way packages were verified before. Each
+ * test verifies the package once, benchmark-verifier.sh runs them in turns with
+ * the page cache dropped in between and sums up the results.
+ *
+ * The package is given with "-e package PATH", it must be signed with keys the
+ * device accepts.
+ */
+public class PackageVerifierBenchmark {
+
+    private static final String TAG = "PackageVerifierBenchmark";
+
+    private File mPackage;
+
+    @Before
+    public void setUp() {
+        String path = InstrumentationRegistry.getArguments().getString("package");
+        assertTrue("No package given, pass one with -e package PATH", path != null);
+        mPackage = new File(path);
+        assertTrue(mPackage + " can't be read", mPackage.canRead());
+    }
+
+    @Test
+    public void recoverySystem() throws Exception {
+        final long start = SystemClock.elapsedRealtime();
+        RecoverySystem.verifyPackage(mPackage, null, null);
+        report("recoverySystem", SystemClock.elapsedRealtime() - start);
+    }
+
+    @Test
+    public void packageVerifier() throws Exception {
+        final long start = SystemClock.elapsedRealtime();
+        new PackageVerifier(mPackage)
+                .setCheckEntries(false)
+                .verify();
+        report("packageVerifier", SystemClock.elapsedRealtime() - start);
+    }
+
+    /**
+     * What downloads that couldn't be matched against their digest go through
+     */
+    @Test
+    public void packageVerifierWithEntries() throws Exception {
+        final long start = SystemClock.elapsedRealtime();
+        new PackageVerifier(mPackage)
+                .setCheckEntries(true)
+                .verify();
+        report("packageVerifierWithEntries", SystemClock.elapsedRealtime() - start);
+    }
+
+    private void report(String method, long elapsedMs) {
+        final double throughput = mPackage.length() / (1024.0 * 1024.0) * 1000 /
+                Math.max(elapsedMs, 1);
+        Log.d(TAG, String.format(Locale.US, "%s: %d ms, %.1f MiB/s", method, elapsedMs,
+                throughput));
+        Bundle results = new Bundle();
+        results.putString("method", method);
+        results.putLong("elapsed_ms", elapsedMs);
+        results.putLong("size", mPackage.length());
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        instrumentation.sendStatus(0, results);
+    }
+}
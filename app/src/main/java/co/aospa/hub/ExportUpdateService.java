@@ -23,7 +23,6 @@ import android.content.Intent;
 import android.content.pm.ServiceInfo;
 import android.net.Uri;
 import android.os.IBinder;
-import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -140,21 +139,11 @@ public class ExportUpdateService extends Service {
         notificationBuilder.setStyle(notificationStyle);
         notificationBuilder.setSmallIcon(R.drawable.ic_system_update);
 
-        FileUtils.ProgressCallBack progressCallBack = new FileUtils.ProgressCallBack() {
-            private long mLastUpdate = -1;
-
-            @Override
-            public void update(int progress) {
-                long now = SystemClock.elapsedRealtime();
-                if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                    String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
-                    notificationStyle.setSummaryText(percent);
-                    notificationBuilder.setProgress(100, progress, false);
-                    notificationManager.notify(NOTIFICATION_ID,
-                            notificationBuilder.build());
-                    mLastUpdate = now;
-                }
-            }
+        FileUtils.ProgressCallBack progressCallBack = progress -> {
+            String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
+            notificationStyle.setSummaryText(percent);
+            notificationBuilder.setProgress(100, progress, false);
+            notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
         };
 
         startForeground(NOTIFICATION_ID, notificationBuilder.build(),
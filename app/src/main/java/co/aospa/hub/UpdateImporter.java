@@ -26,32 +26,28 @@ import android.util.Log;
 import org.json.JSONException;
 import co.aospa.hub.controller.UpdaterController;
 import co.aospa.hub.controller.UpdaterService;
+import co.aospa.hub.misc.FileUtils;
+import co.aospa.hub.misc.PackageVerifier;
+import co.aospa.hub.misc.ProgressReporter;
 import co.aospa.hub.misc.StringGenerator;
 import co.aospa.hub.misc.Utils;
+import co.aospa.hub.model.PackageIndex;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateInfo;
 import co.aospa.hub.model.UpdateStatus;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class UpdateImporter {
     private static final int REQUEST_PICK = 9061;
     private static final String TAG = "UpdateImporter";
     private static final String MIME_ZIP = "application/zip";
     private static final String FILE_NAME = "localUpdate.zip";
-    private static final String METADATA_PATH = "META-INF/com/android/metadata";
-    private static final String METADATA_TIMESTAMP_KEY = "post-timestamp=";
 
     private final Activity activity;
     private final Callbacks callbacks;
@@ -94,8 +90,11 @@ public class UpdateImporter {
             try {
                 importedFile = importFile(uri);
                 verifyPackage(importedFile);
+                // Don't verify the copy again when it gets resumed
+                new UpdatesDbHelper(activity).addVerifiedPackage(importedFile, null);
 
-                final Update update = buildLocalUpdate(importedFile);
+                final Update update = buildLocalUpdate(importedFile,
+                        Utils.readPackageIndex(importedFile));
                 addUpdate(update);
                 activity.runOnUiThread(() -> callbacks.onImportCompleted(update));
             } catch (Exception e) {
@@ -130,11 +129,20 @@ public class UpdateImporter {
         }
         final FileOutputStream oStream = new FileOutputStream(outFile);
 
+        final ProgressReporter reporter = FileUtils.newReporter(progress ->
+                activity.runOnUiThread(() -> callbacks.onImportProgress(progress)));
+        reporter.setTotal(parcelDescriptor.getStatSize());
+        reporter.reset(0);
+
         int read;
+        long total = 0;
         final byte[] buffer = new byte[4096];
         while ((read = iStream.read(buffer)) > 0) {
             oStream.write(buffer, 0, read);
+            total += read;
+            reporter.update(total);
         }
+        reporter.report(total);
         oStream.flush();
         oStream.close();
         iStream.close();
@@ -145,8 +153,8 @@ public class UpdateImporter {
         return outFile;
     }
 
-    private Update buildLocalUpdate(File file) {
-        final long timeStamp = getTimeStamp(file);
+    private Update buildLocalUpdate(File file, PackageIndex index) {
+        final long timeStamp = getTimeStamp(index);
         final String buildDate = StringGenerator.getDateLocalizedUTC(
                 activity, DateFormat.MEDIUM, timeStamp);
         final String name = activity.getString(R.string.local_update_name);
@@ -159,6 +167,9 @@ public class UpdateImporter {
         update.setTimestamp(timeStamp);
         update.setStatus(UpdateStatus.VERIFIED);
         update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+        update.setPackageIndex(index);
+        update.setPackageType(index.isAB() ?
+                Update.PACKAGE_TYPE_AB : Update.PACKAGE_TYPE_NON_AB);
         update.setVersion(String.format("%s (%s)", name, buildDate));
         return update;
     }
@@ -166,7 +177,7 @@ public class UpdateImporter {
     @SuppressWarnings("ResultOfMethodCallIgnored")
     private void verifyPackage(File file) throws Exception {
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
+            new PackageVerifier(file).verify();
         } catch (Exception e) {
             if (file.exists()) {
                 file.delete();
@@ -182,68 +193,23 @@ public class UpdateImporter {
         controller.addUpdate(update, false);
     }
 
-    private long getTimeStamp(File file) {
-        try {
-            final String metadataContent = readZippedFile(file, METADATA_PATH);
-            final String[] lines = metadataContent.split("\n");
-            for (String line : lines) {
-                if (!line.startsWith(METADATA_TIMESTAMP_KEY)) {
-                    continue;
-                }
-
-                final String timeStampStr = line.replace(METADATA_TIMESTAMP_KEY, "");
-                return Long.parseLong(timeStampStr);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to read date from local update zip package", e);
-        } catch (NumberFormatException e) {
-            Log.e(TAG, "Failed to parse timestamp number from zip metadata file", e);
+    private long getTimeStamp(PackageIndex index) {
+        if (index.getPostTimestamp() > 0) {
+            return index.getPostTimestamp();
         }
 
         Log.e(TAG, "Couldn't find timestamp in zip file, falling back to $now");
         return System.currentTimeMillis();
     }
 
-    private String readZippedFile(File file, String path) throws IOException {
-        final StringBuilder sb = new StringBuilder();
-        InputStream iStream = null;
-
-        try (final ZipFile zip = new ZipFile(file)) {
-            final Enumeration<? extends ZipEntry> iterator = zip.entries();
-            while (iterator.hasMoreElements()) {
-                final ZipEntry entry = iterator.nextElement();
-                if (!METADATA_PATH.equals(entry.getName())) {
-                    continue;
-                }
-
-                iStream = zip.getInputStream(entry);
-                break;
-            }
-
-            if (iStream == null) {
-                throw new FileNotFoundException("Couldn't find " + path + " in " + file.getName());
-            }
-
-            final byte[] buffer = new byte[1024];
-            int read;
-            while ((read = iStream.read(buffer)) > 0) {
-                sb.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to read file from zip package", e);
-            throw e;
-        } finally {
-            if (iStream != null) {
-                iStream.close();
-            }
-        }
-
-        return sb.toString();
-    }
-
     public interface Callbacks {
         void onImportStarted();
 
+        /**
+         * @param progress the percentage of the file imported, -1 if unknown
+         */
+        void onImportProgress(int progress);
+
         void onImportCompleted(Update update);
     }
 }
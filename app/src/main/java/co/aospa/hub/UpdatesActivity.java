@@ -69,13 +69,15 @@ import com.google.android.material.snackbar.Snackbar;
 import org.json.JSONException;
 import co.aospa.hub.controller.UpdaterController;
 import co.aospa.hub.controller.UpdaterService;
-import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.CatalogClient;
+import co.aospa.hub.download.HttpTransport;
 import co.aospa.hub.misc.BuildInfoUtils;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.StringGenerator;
 import co.aospa.hub.misc.Utils;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateInfo;
+import co.aospa.hub.model.UpdateStatus;
 
 import java.io.File;
 import java.io.IOException;
@@ -311,8 +313,23 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             importDialog.dismiss();
         }
 
-        importDialog = ProgressDialog.show(this, getString(R.string.local_update_import),
-                getString(R.string.local_update_import_progress), true, false);
+        importDialog = new ProgressDialog(this);
+        importDialog.setTitle(R.string.local_update_import);
+        importDialog.setMessage(getString(R.string.local_update_import_progress));
+        importDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        importDialog.setIndeterminate(true);
+        importDialog.setMax(100);
+        importDialog.setCancelable(false);
+        importDialog.show();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void onImportProgress(int progress) {
+        if (importDialog != null && progress >= 0) {
+            importDialog.setIndeterminate(false);
+            importDialog.setProgress(progress);
+        }
     }
 
     @Override
@@ -402,6 +419,12 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             }
             mAdapter.setData(updateIds);
             mAdapter.notifyDataSetChanged();
+
+            // Get the connection ready in case the user downloads the newest update
+            UpdateInfo newest = sortedUpdates.get(0);
+            if (newest.getStatus() == UpdateStatus.UNKNOWN && newest.getAvailableOnline()) {
+                HttpTransport.preconnect(newest.getDownloadUrl());
+            }
         }
     }
 
@@ -419,74 +442,73 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         }
     }
 
-    private void processNewJson(File json, File jsonNew, boolean manualRefresh) {
+    private void processNewJson(File json, File jsonNew, boolean manualRefresh,
+            String etag, String lastModified) {
         try {
             loadUpdatesList(jsonNew, manualRefresh);
-            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
-            long millis = System.currentTimeMillis();
-            preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
-            updateLastCheckedString();
             if (json.exists() && Utils.isUpdateCheckEnabled(this) &&
                     Utils.checkForNewUpdates(json, jsonNew)) {
                 UpdatesCheckReceiver.updateRepeatingUpdatesCheck(this);
             }
-            // In case we set a one-shot check because of a previous failure
-            UpdatesCheckReceiver.cancelUpdatesCheck(this);
             //noinspection ResultOfMethodCallIgnored
             jsonNew.renameTo(json);
+            Utils.setCachedUpdateListValidators(this, etag, lastModified);
+            onUpdatesListChecked();
         } catch (IOException | JSONException e) {
             Log.e(TAG, "Could not read json", e);
             showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
         }
     }
 
+    private void onUpdatesListChecked() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        long millis = System.currentTimeMillis();
+        preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
+        updateLastCheckedString();
+        // In case we set a one-shot check because of a previous failure
+        UpdatesCheckReceiver.cancelUpdatesCheck(this);
+    }
+
     private void downloadUpdatesList(final boolean manualRefresh) {
         final File jsonFile = Utils.getCachedUpdateList(this);
         final File jsonFileTmp = new File(jsonFile.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(this);
-        Log.d(TAG, "Checking " + url);
+        Log.d(TAG, "Checking " + Utils.getServerURL(this));
 
-        DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+        CatalogClient.Callback callback = new CatalogClient.Callback() {
             @Override
-            public void onFailure(final boolean cancelled) {
+            public void onFailure() {
                 Log.e(TAG, "Could not download updates list");
                 runOnUiThread(() -> {
-                    if (!cancelled) {
-                        showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
-                    }
+                    showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
                     refreshAnimationStop();
                 });
             }
 
             @Override
-            public void onResponse(DownloadClient.Headers headers) {
+            public void onNotModified() {
+                runOnUiThread(() -> {
+                    Log.d(TAG, "List not modified");
+                    // The cached list, which is already loaded, is still current
+                    onUpdatesListChecked();
+                    if (manualRefresh) {
+                        showSnackbar(R.string.snack_no_updates_found, Snackbar.LENGTH_SHORT);
+                    }
+                    refreshAnimationStop();
+                });
             }
 
             @Override
-            public void onSuccess() {
+            public void onSuccess(String etag, String lastModified) {
                 runOnUiThread(() -> {
                     Log.d(TAG, "List downloaded");
-                    processNewJson(jsonFile, jsonFileTmp, manualRefresh);
+                    processNewJson(jsonFile, jsonFileTmp, manualRefresh, etag, lastModified);
                     refreshAnimationStop();
                 });
             }
         };
 
-        final DownloadClient downloadClient;
-        try {
-            downloadClient = new DownloadClient.Builder()
-                    .setUrl(url)
-                    .setDestination(jsonFileTmp)
-                    .setDownloadCallback(callback)
-                    .build();
-        } catch (IOException exception) {
-            Log.e(TAG, "Could not build download client");
-            showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
-            return;
-        }
-
         refreshAnimationStart();
-        downloadClient.start();
+        Utils.newCatalogClient(this, jsonFileTmp, callback).start();
     }
 
     private void updateLastCheckedString() {
@@ -510,6 +532,9 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             case PAUSED_ERROR:
                 showSnackbar(R.string.snack_download_failed, Snackbar.LENGTH_LONG);
                 break;
+            case NOT_ENOUGH_SPACE:
+                showSnackbar(R.string.snack_download_not_enough_space, Snackbar.LENGTH_LONG);
+                break;
             case VERIFICATION_FAILED:
                 showSnackbar(R.string.snack_download_verification_failed, Snackbar.LENGTH_LONG);
                 break;
@@ -30,7 +30,7 @@ import androidx.core.app.NotificationCompat;
 import androidx.preference.PreferenceManager;
 
 import org.json.JSONException;
-import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.CatalogClient;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.Utils;
 
@@ -75,20 +75,20 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
 
         final File json = Utils.getCachedUpdateList(context);
         final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(context);
-        DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+        CatalogClient.Callback callback = new CatalogClient.Callback() {
             @Override
-            public void onFailure(boolean cancelled) {
+            public void onFailure() {
                 Log.e(TAG, "Could not download updates list, scheduling new check");
                 scheduleUpdatesCheck(context);
             }
 
             @Override
-            public void onResponse(DownloadClient.Headers headers) {
+            public void onNotModified() {
+                onChecked();
             }
 
             @Override
-            public void onSuccess() {
+            public void onSuccess(String etag, String lastModified) {
                 try {
                     if (json.exists() && Utils.checkForNewUpdates(json, jsonNew)) {
                         showNotification(context);
@@ -96,30 +96,25 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
                     }
                     //noinspection ResultOfMethodCallIgnored
                     jsonNew.renameTo(json);
-                    long currentMillis = System.currentTimeMillis();
-                    preferences.edit()
-                            .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
-                            .apply();
-                    // In case we set a one-shot check because of a previous failure
-                    cancelUpdatesCheck(context);
+                    Utils.setCachedUpdateListValidators(context, etag, lastModified);
+                    onChecked();
                 } catch (IOException | JSONException e) {
                     Log.e(TAG, "Could not parse list, scheduling new check", e);
                     scheduleUpdatesCheck(context);
                 }
             }
+
+            private void onChecked() {
+                long currentMillis = System.currentTimeMillis();
+                preferences.edit()
+                        .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
+                        .apply();
+                // In case we set a one-shot check because of a previous failure
+                cancelUpdatesCheck(context);
+            }
         };
 
-        try {
-            DownloadClient downloadClient = new DownloadClient.Builder()
-                    .setUrl(url)
-                    .setDestination(jsonNew)
-                    .setDownloadCallback(callback)
-                    .build();
-            downloadClient.start();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not fetch list, scheduling new check", e);
-            scheduleUpdatesCheck(context);
-        }
+        Utils.newCatalogClient(context, jsonNew, callback).start();
     }
 
     private static void showNotification(Context context) {
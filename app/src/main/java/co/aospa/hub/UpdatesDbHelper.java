@@ -21,7 +21,16 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import co.aospa.hub.model.PackageIndex;
 import co.aospa.hub.model.Update;
 
 import java.io.File;
@@ -30,7 +39,9 @@ import java.util.List;
 
 public class UpdatesDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    private static final String TAG = "UpdatesDbHelper";
+
+    public static final int DATABASE_VERSION = 3;
     public static final String DATABASE_NAME = "updates.db";
 
     public static class UpdateEntry implements BaseColumns {
@@ -42,6 +53,20 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_TYPE = "type";
         public static final String COLUMN_NAME_VERSION = "version";
         public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_PACKAGE_INDEX = "package_index";
+    }
+
+    /**
+     * Packages that passed the verification, as they were when they did. A package
+     * only counts as verified while the file is still the same one, unchanged.
+     */
+    public static class VerifiedEntry implements BaseColumns {
+        public static final String TABLE_NAME = "verified_packages";
+        public static final String COLUMN_NAME_PATH = "path";
+        public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_MTIME = "mtime";
+        public static final String COLUMN_NAME_INODE = "inode";
+        public static final String COLUMN_NAME_SHA256 = "sha256";
     }
 
     private static final String SQL_CREATE_ENTRIES =
@@ -53,26 +78,47 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                     UpdateEntry.COLUMN_NAME_TIMESTAMP + " INTEGER," +
                     UpdateEntry.COLUMN_NAME_TYPE + " TEXT," +
                     UpdateEntry.COLUMN_NAME_VERSION + " TEXT," +
-                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER)";
+                    UpdateEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    UpdateEntry.COLUMN_NAME_PACKAGE_INDEX + " TEXT)";
+
+    private static final String SQL_CREATE_VERIFIED_ENTRIES =
+            "CREATE TABLE " + VerifiedEntry.TABLE_NAME + " (" +
+                    VerifiedEntry._ID + " INTEGER PRIMARY KEY," +
+                    VerifiedEntry.COLUMN_NAME_PATH + " TEXT NOT NULL UNIQUE," +
+                    VerifiedEntry.COLUMN_NAME_SIZE + " INTEGER," +
+                    VerifiedEntry.COLUMN_NAME_MTIME + " INTEGER," +
+                    VerifiedEntry.COLUMN_NAME_INODE + " INTEGER," +
+                    VerifiedEntry.COLUMN_NAME_SHA256 + " TEXT)";
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + UpdateEntry.TABLE_NAME;
 
+    private static final String SQL_DELETE_VERIFIED_ENTRIES =
+            "DROP TABLE IF EXISTS " + VerifiedEntry.TABLE_NAME;
+
     public UpdatesDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_VERIFIED_ENTRIES);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        if (oldVersion < 2) {
+            db.execSQL(SQL_CREATE_VERIFIED_ENTRIES);
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + UpdateEntry.TABLE_NAME + " ADD COLUMN " +
+                    UpdateEntry.COLUMN_NAME_PACKAGE_INDEX + " TEXT");
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_VERIFIED_ENTRIES);
+        onCreate(db);
     }
 
     public void addUpdateWithOnConflict(Update update, int conflictAlgorithm) {
@@ -90,6 +136,8 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         values.put(UpdateEntry.COLUMN_NAME_TYPE, update.getType());
         values.put(UpdateEntry.COLUMN_NAME_VERSION, update.getVersion());
         values.put(UpdateEntry.COLUMN_NAME_SIZE, update.getFileSize());
+        values.put(UpdateEntry.COLUMN_NAME_PACKAGE_INDEX,
+                packageIndexToJson(update.getPackageIndex()));
     }
 
     public void removeUpdate(String downloadId) {
@@ -105,6 +153,16 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
         changeUpdateStatus(selection, selectionArgs, update.getPersistentStatus());
     }
 
+    public void changePackageIndex(Update update) {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(UpdateEntry.COLUMN_NAME_PACKAGE_INDEX,
+                packageIndexToJson(update.getPackageIndex()));
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?";
+        String[] selectionArgs = {update.getDownloadId()};
+        db.update(UpdateEntry.TABLE_NAME, values, selection, selectionArgs);
+    }
+
     private void changeUpdateStatus(String selection, String[] selectionArgs,
                                     int status) {
         SQLiteDatabase db = getWritableDatabase();
@@ -127,6 +185,7 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 UpdateEntry.COLUMN_NAME_VERSION,
                 UpdateEntry.COLUMN_NAME_STATUS,
                 UpdateEntry.COLUMN_NAME_SIZE,
+                UpdateEntry.COLUMN_NAME_PACKAGE_INDEX,
         };
         String sort = UpdateEntry.COLUMN_NAME_TIMESTAMP + " DESC";
         Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection, selectionArgs,
@@ -150,10 +209,176 @@ public class UpdatesDbHelper extends SQLiteOpenHelper {
                 update.setPersistentStatus(cursor.getInt(index));
                 index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_SIZE);
                 update.setFileSize(cursor.getLong(index));
+                index = cursor.getColumnIndex(UpdateEntry.COLUMN_NAME_PACKAGE_INDEX);
+                update.setPackageIndex(parsePackageIndex(cursor.getString(index)));
                 updates.add(update);
             }
             cursor.close();
         }
         return updates;
     }
+
+    /**
+     * @return the index stored for the update, null if its package at the given path
+     *         wasn't indexed
+     */
+    public PackageIndex getPackageIndex(String downloadId, File file) {
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {UpdateEntry.COLUMN_NAME_PACKAGE_INDEX};
+        String selection = UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ? AND " +
+                UpdateEntry.COLUMN_NAME_PATH + " = ?";
+        String[] selectionArgs = {downloadId, file.getAbsolutePath()};
+        PackageIndex packageIndex = null;
+        try (Cursor cursor = db.query(UpdateEntry.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                packageIndex = parsePackageIndex(cursor.getString(0));
+            }
+        }
+        return packageIndex;
+    }
+
+    private static String packageIndexToJson(PackageIndex packageIndex) {
+        if (packageIndex == null) {
+            return null;
+        }
+        try {
+            JSONObject object = new JSONObject();
+            object.put("ab", packageIndex.isAB());
+            object.put("payload_offset", packageIndex.getPayloadOffset());
+            object.put("payload_size", packageIndex.getPayloadSize());
+            if (packageIndex.getPayloadProperties() != null) {
+                JSONArray properties = new JSONArray();
+                for (String property : packageIndex.getPayloadProperties()) {
+                    properties.put(property);
+                }
+                object.put("payload_properties", properties);
+            }
+            object.put("post_timestamp", packageIndex.getPostTimestamp());
+            JSONArray entries = new JSONArray();
+            for (PackageIndex.Entry entry : packageIndex.getEntries()) {
+                JSONObject entryObject = new JSONObject();
+                entryObject.put("name", entry.getName());
+                entryObject.put("method", entry.getMethod());
+                entryObject.put("compressed_size", entry.getCompressedSize());
+                entryObject.put("size", entry.getSize());
+                entries.put(entryObject);
+            }
+            object.put("entries", entries);
+            return object.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not store the package index", e);
+            return null;
+        }
+    }
+
+    private static PackageIndex parsePackageIndex(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            JSONObject object = new JSONObject(json);
+            PackageIndex packageIndex = new PackageIndex();
+            packageIndex.setAB(object.getBoolean("ab"));
+            packageIndex.setPayloadOffset(object.getLong("payload_offset"));
+            packageIndex.setPayloadSize(object.getLong("payload_size"));
+            JSONArray properties = object.optJSONArray("payload_properties");
+            if (properties != null) {
+                String[] payloadProperties = new String[properties.length()];
+                for (int i = 0; i < properties.length(); i++) {
+                    payloadProperties[i] = properties.getString(i);
+                }
+                packageIndex.setPayloadProperties(payloadProperties);
+            }
+            packageIndex.setPostTimestamp(object.getLong("post_timestamp"));
+            JSONArray entries = object.getJSONArray("entries");
+            List<PackageIndex.Entry> entryList = new ArrayList<>();
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entryObject = entries.getJSONObject(i);
+                PackageIndex.Entry entry = new PackageIndex.Entry();
+                entry.setName(entryObject.getString("name"));
+                entry.setMethod(entryObject.getInt("method"));
+                entry.setCompressedSize(entryObject.getLong("compressed_size"));
+                entry.setSize(entryObject.getLong("size"));
+                entryList.add(entry);
+            }
+            packageIndex.setEntries(entryList);
+            return packageIndex;
+        } catch (JSONException e) {
+            // Read again from the package when needed
+            Log.e(TAG, "Invalid package index", e);
+            return null;
+        }
+    }
+
+    /**
+     * Remember that the package passed the verification as it is now
+     *
+     * @param sha256 the digest the package was found to match, null if unknown
+     */
+    public void addVerifiedPackage(File file, String sha256) {
+        StructStat stat;
+        try {
+            stat = Os.stat(file.getAbsolutePath());
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Could not stat " + file, e);
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(VerifiedEntry.COLUMN_NAME_PATH, file.getAbsolutePath());
+        values.put(VerifiedEntry.COLUMN_NAME_SIZE, stat.st_size);
+        values.put(VerifiedEntry.COLUMN_NAME_MTIME, getModificationTime(stat));
+        values.put(VerifiedEntry.COLUMN_NAME_INODE, stat.st_ino);
+        values.put(VerifiedEntry.COLUMN_NAME_SHA256, sha256);
+        db.insertWithOnConflict(VerifiedEntry.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Whether the package passed the verification and didn't change since
+     *
+     * @param sha256 the digest the package must match, null if unknown
+     */
+    public boolean isPackageVerified(File file, String sha256) {
+        StructStat stat;
+        try {
+            stat = Os.stat(file.getAbsolutePath());
+        } catch (ErrnoException e) {
+            return false;
+        }
+        SQLiteDatabase db = getReadableDatabase();
+        String[] projection = {VerifiedEntry.COLUMN_NAME_SHA256};
+        String selection = VerifiedEntry.COLUMN_NAME_PATH + " = ? AND " +
+                VerifiedEntry.COLUMN_NAME_SIZE + " = ? AND " +
+                VerifiedEntry.COLUMN_NAME_MTIME + " = ? AND " +
+                VerifiedEntry.COLUMN_NAME_INODE + " = ?";
+        String[] selectionArgs = {
+                file.getAbsolutePath(),
+                Long.toString(stat.st_size),
+                Long.toString(getModificationTime(stat)),
+                Long.toString(stat.st_ino),
+        };
+        boolean verified = false;
+        try (Cursor cursor = db.query(VerifiedEntry.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                String verifiedSha256 = cursor.getString(0);
+                verified = sha256 == null || verifiedSha256 == null ||
+                        sha256.equalsIgnoreCase(verifiedSha256);
+            }
+        }
+        return verified;
+    }
+
+    public void removeVerifiedPackage(File file) {
+        SQLiteDatabase db = getWritableDatabase();
+        String selection = VerifiedEntry.COLUMN_NAME_PATH + " = ?";
+        String[] selectionArgs = {file.getAbsolutePath()};
+        db.delete(VerifiedEntry.TABLE_NAME, selection, selectionArgs);
+    }
+
+    private static long getModificationTime(StructStat stat) {
+        return stat.st_mtim.tv_sec * 1000000000L + stat.st_mtim.tv_nsec;
+    }
 }
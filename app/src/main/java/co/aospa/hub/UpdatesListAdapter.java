@@ -55,10 +55,12 @@ import com.google.android.material.snackbar.Snackbar;
 
 import co.aospa.hub.controller.UpdaterController;
 import co.aospa.hub.controller.UpdaterService;
+import co.aospa.hub.download.DownloadJournal;
 import co.aospa.hub.misc.BuildInfoUtils;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.StringGenerator;
 import co.aospa.hub.misc.Utils;
+import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateInfo;
 import co.aospa.hub.model.UpdateStatus;
 
@@ -165,7 +167,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         if (mUpdaterController.isDownloading(downloadId)) {
             canDelete = true;
             String downloaded = Formatter.formatShortFileSize(mActivity,
-                    update.getFile().length());
+                    DownloadJournal.getDownloadedBytes(update.getFile()));
             String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getProgress() / 100.f);
@@ -182,6 +184,14 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
             viewHolder.mProgressBar.setIndeterminate(update.getStatus() == UpdateStatus.STARTING);
             viewHolder.mProgressBar.setProgress(update.getProgress());
+        } else if (mUpdaterController.isQueued(downloadId)) {
+            setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
+            String percentage = NumberFormat.getPercentInstance().format(
+                    update.getProgress() / 100.f);
+            viewHolder.mPercentage.setText(percentage);
+            viewHolder.mProgressText.setText(R.string.list_download_queued);
+            viewHolder.mProgressBar.setIndeterminate(false);
+            viewHolder.mProgressBar.setProgress(update.getProgress());
         } else if (mUpdaterController.isInstallingUpdate(downloadId)) {
             setButtonAction(viewHolder.mAction, Action.CANCEL_INSTALLATION, downloadId, true);
             boolean notAB = !mUpdaterController.isInstallingABUpdate();
@@ -195,14 +205,26 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             viewHolder.mProgressBar.setIndeterminate(false);
             viewHolder.mProgressBar.setProgress(update.getInstallProgress());
         } else if (mUpdaterController.isVerifyingUpdate(downloadId)) {
-            setButtonAction(viewHolder.mAction, Action.INSTALL, downloadId, false);
-            viewHolder.mProgressText.setText(R.string.list_verifying_update);
-            viewHolder.mProgressBar.setIndeterminate(true);
+            setButtonAction(viewHolder.mAction, Action.PAUSE, downloadId, true);
+            String percentage = NumberFormat.getPercentInstance().format(
+                    update.getProgress() / 100.f);
+            viewHolder.mPercentage.setText(percentage);
+            long eta = update.getEta();
+            if (eta > 0) {
+                CharSequence etaString = StringGenerator.formatETA(mActivity, eta * 1000);
+                viewHolder.mProgressText.setText(mActivity.getString(
+                        R.string.list_verifying_update_eta, etaString));
+            } else {
+                viewHolder.mProgressText.setText(R.string.list_verifying_update);
+            }
+            // The entries are checked before the progress starts to be known
+            viewHolder.mProgressBar.setIndeterminate(update.getProgress() == 0);
+            viewHolder.mProgressBar.setProgress(update.getProgress());
         } else {
             canDelete = true;
-            setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, !isBusy());
+            setButtonAction(viewHolder.mAction, Action.RESUME, downloadId, canQueueDownload());
             String downloaded = Formatter.formatShortFileSize(mActivity,
-                    update.getFile().length());
+                    DownloadJournal.getDownloadedBytes(update.getFile()));
             String total = Formatter.formatShortFileSize(mActivity, update.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getProgress() / 100.f);
@@ -234,9 +256,14 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
             setButtonAction(viewHolder.mAction, Action.INFO, downloadId, !isBusy());
         } else {
             viewHolder.mMenu.setOnClickListener(getClickListener(update, false, viewHolder.mMenu));
-            setButtonAction(viewHolder.mAction, Action.DOWNLOAD, downloadId, !isBusy());
+            setButtonAction(viewHolder.mAction, Action.DOWNLOAD, downloadId, canQueueDownload());
         }
         String fileSize = Formatter.formatShortFileSize(mActivity, update.getFileSize());
+        if (update.getPackageType() == Update.PACKAGE_TYPE_AB) {
+            fileSize = mActivity.getString(R.string.list_build_size_ab, fileSize);
+        } else if (update.getPackageType() == Update.PACKAGE_TYPE_NON_AB) {
+            fileSize = mActivity.getString(R.string.list_build_size_non_ab, fileSize);
+        }
         viewHolder.mBuildSize.setText(fileSize);
 
         viewHolder.mProgress.setVisibility(View.INVISIBLE);
@@ -265,7 +292,10 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         boolean activeLayout;
         switch (update.getPersistentStatus()) {
             case UpdateStatus.Persistent.UNKNOWN:
-                activeLayout = update.getStatus() == UpdateStatus.STARTING;
+                // Streamed updates are installed without being downloaded
+                activeLayout = update.getStatus() == UpdateStatus.STARTING ||
+                        update.getStatus() == UpdateStatus.QUEUED ||
+                        update.getStatus() == UpdateStatus.INSTALLING;
                 break;
             case UpdateStatus.Persistent.VERIFIED:
                 activeLayout = update.getStatus() == UpdateStatus.INSTALLING;
@@ -376,7 +406,8 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 button.setEnabled(enabled);
                 UpdateInfo update = mUpdaterController.getUpdate(downloadId);
                 final boolean canInstall = Utils.canInstall(update) ||
-                        update.getFile().length() == update.getFileSize();
+                        DownloadJournal.getDownloadedBytes(update.getFile()) ==
+                                update.getFileSize();
                 clickListener = enabled ? view -> {
                     if (canInstall) {
                         mUpdaterController.resumeDownload(downloadId);
@@ -450,6 +481,15 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                 || mUpdaterController.isInstallingUpdate();
     }
 
+    /**
+     * Downloads wait in a queue for the running ones, they only have to wait for
+     * verifications and installations to complete
+     */
+    private boolean canQueueDownload() {
+        return !mUpdaterController.isVerifyingUpdate() &&
+                !mUpdaterController.isInstallingUpdate();
+    }
+
     private AlertDialog.Builder getDeleteDialog(final String downloadId) {
         return new AlertDialog.Builder(mActivity)
                 .setTitle(R.string.confirm_delete_dialog_title)
@@ -467,7 +507,23 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         return view -> startActionMode(update, canDelete, anchor);
     }
 
+    /**
+     * A/B updates can be installed while update_engine downloads them, which doesn't
+     * need any space for the package
+     */
+    private boolean canStream(UpdateInfo update) {
+        return Utils.isABDevice() && update.getPackageType() == Update.PACKAGE_TYPE_AB &&
+                update.getAvailableOnline() && Utils.canInstall(update) && !isBusy() &&
+                update.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN &&
+                !mUpdaterController.isDownloading(update.getDownloadId());
+    }
+
     private AlertDialog.Builder getInstallDialog(final String downloadId) {
+        return getInstallDialog(downloadId, false);
+    }
+
+    private AlertDialog.Builder getInstallDialog(final String downloadId,
+            final boolean streaming) {
         if (!isBatteryLevelOk()) {
             Resources resources = mActivity.getResources();
             String message = resources.getString(R.string.dialog_battery_low_message_pct,
@@ -487,7 +543,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         int resId;
         try {
-            if (Utils.isABUpdate(update.getFile())) {
+            if (streaming || Utils.isABUpdate(update)) {
                 resId = R.string.apply_update_dialog_message_ab;
             } else {
                 resId = R.string.apply_update_dialog_message;
@@ -507,7 +563,11 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                         mActivity.getString(android.R.string.ok)))
                 .setPositiveButton(android.R.string.ok,
                         (dialog, which) -> {
-                            Utils.triggerUpdate(mActivity, downloadId);
+                            if (streaming) {
+                                Utils.triggerStreamingUpdate(mActivity, downloadId);
+                            } else {
+                                Utils.triggerUpdate(mActivity, downloadId);
+                            }
                             maybeShowInfoDialog();
                         })
                 .setNegativeButton(android.R.string.cancel, null);
@@ -558,6 +618,7 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         menu.findItem(R.id.menu_delete_action).setVisible(shouldShowDelete);
         menu.findItem(R.id.menu_copy_url).setVisible(update.getAvailableOnline());
         menu.findItem(R.id.menu_export_update).setVisible(isVerified);
+        menu.findItem(R.id.menu_stream_update).setVisible(canStream(update));
 
         popupMenu.setOnMenuItemClickListener(item -> {
             int itemId = item.getItemId();
@@ -570,6 +631,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                         update.getDownloadUrl(),
                         mActivity.getString(R.string.toast_download_url_copied));
                 return true;
+            } else if (itemId == R.id.menu_stream_update) {
+                AlertDialog.Builder installDialog =
+                        getInstallDialog(update.getDownloadId(), true);
+                if (installDialog != null) {
+                    installDialog.show();
+                }
+                return true;
             } else if (itemId == R.id.menu_export_update) {
                 if (mActivity != null) {
                     mActivity.exportUpdate(update);
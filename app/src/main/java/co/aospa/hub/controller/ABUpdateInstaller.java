@@ -25,20 +25,16 @@ import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import co.aospa.hub.download.RemoteZipInspector;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.Utils;
+import co.aospa.hub.model.PackageIndex;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateStatus;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.io.InterruptedIOException;
 
 class ABUpdateInstaller {
 
@@ -58,6 +54,10 @@ class ABUpdateInstaller {
 
     private boolean mFinalizing;
     private int mProgress;
+    // Checks the payload before it's applied, cleared once it was handed to
+    // update_engine or by cancel(), both under mPrepareLock
+    private Thread mPrepareThread;
+    private final Object mPrepareLock = new Object();
 
     private final UpdateEngineCallback mUpdateEngineCallback = new UpdateEngineCallback() {
 
@@ -172,35 +172,157 @@ class ABUpdateInstaller {
             return;
         }
 
-        long offset;
-        String[] headerKeyValuePairs;
-        try {
-            ZipFile zipFile = new ZipFile(file);
-            offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
+        // Claim update_engine now, the payload is checked before it's applied
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_INSTALLING_AB_ID, mDownloadId)
+                .apply();
+        mUpdaterController.getActualUpdate(downloadId).setInstallProgress(0);
+        mUpdaterController.getActualUpdate(downloadId).setStatus(UpdateStatus.INSTALLING);
+        mUpdaterController.notifyUpdateChange(downloadId);
+        startPreparation(() -> {
+            long offset;
+            String[] headerKeyValuePairs;
+            try {
+                // Indexed when verified, older updates weren't
+                PackageIndex index = mUpdaterController.getActualUpdate(downloadId)
+                        .getPackageIndex();
+                if (index == null) {
+                    index = Utils.readPackageIndex(file);
                 }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
+                if (!index.isAB()) {
+                    throw new IOException("Not an A/B package");
+                }
+                if (index.getPayloadOffset() < 0) {
+                    // update_engine reads it in place
+                    throw new IOException("payload.bin is compressed");
+                }
+                offset = index.getPayloadOffset();
+                final long size = index.getPayloadSize();
+                headerKeyValuePairs = index.getPayloadProperties();
+                PayloadValidator.validate(file, offset, size, headerKeyValuePairs);
+            } catch (IOException e) {
+                failPreparation(downloadId, "Could not prepare " + file, e);
+                return;
             }
-            zipFile.close();
-        } catch (IOException | IllegalArgumentException e) {
-            Log.e(TAG, "Could not prepare " + file, e);
-            mUpdaterController.getActualUpdate(mDownloadId)
-                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
-            mUpdaterController.notifyUpdateChange(mDownloadId);
+            applyPreparedPayload(downloadId, "file://" + file.getAbsolutePath(), offset, 0,
+                    headerKeyValuePairs);
+        });
+    }
+
+    /**
+     * Install the update without downloading it first, update_engine reads the payload
+     * straight from the server. Its offset and properties are read remotely as well.
+     */
+    public void installStreaming(String downloadId) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
             return;
         }
 
+        mDownloadId = downloadId;
+
+        // Claim update_engine now, preparing takes a few round trips to the server
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putString(PREF_INSTALLING_AB_ID, mDownloadId)
+                .apply();
+        final String url = mUpdaterController.getActualUpdate(downloadId).getDownloadUrl();
+        mUpdaterController.getActualUpdate(downloadId).setInstallProgress(0);
+        mUpdaterController.getActualUpdate(downloadId).setStatus(UpdateStatus.INSTALLING);
+        mUpdaterController.notifyUpdateChange(downloadId);
+        startPreparation(() -> {
+            long offset;
+            long size;
+            String[] headerKeyValuePairs;
+            try {
+                // Each of these is a round trip, cancelling mustn't wait for all of them
+                RemoteZipInspector inspector = RemoteZipInspector.open(url);
+                throwIfInterrupted();
+                offset = inspector.getEntryDataOffset(Constants.AB_PAYLOAD_BIN_PATH);
+                throwIfInterrupted();
+                size = inspector.getEntrySize(Constants.AB_PAYLOAD_BIN_PATH);
+                throwIfInterrupted();
+                headerKeyValuePairs = Utils.parsePayloadProperties(
+                        inspector.readEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH));
+            } catch (IOException e) {
+                failPreparation(downloadId, "Could not prepare streaming " + url, e);
+                return;
+            }
+            Log.d(TAG, "Streaming " + size + " bytes at " + offset + " from " + url);
+            applyPreparedPayload(downloadId, url, offset, size, headerKeyValuePairs);
+        });
+    }
+
+    private static void throwIfInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Preparation interrupted");
+        }
+    }
+
+    private void startPreparation(Runnable preparation) {
+        synchronized (mPrepareLock) {
+            mPrepareThread = new Thread(preparation);
+            mPrepareThread.start();
+        }
+    }
+
+    /**
+     * Whether cancel() stopped the preparation running on this thread, which then
+     * leaves the status alone
+     */
+    private boolean isPreparationCancelled() {
+        synchronized (mPrepareLock) {
+            return mPrepareThread != Thread.currentThread();
+        }
+    }
+
+    private void failPreparation(String downloadId, String message, IOException e) {
+        synchronized (mPrepareLock) {
+            if (isPreparationCancelled()) {
+                Log.d(TAG, "Preparation cancelled");
+                return;
+            }
+            mPrepareThread = null;
+            Log.e(TAG, message, e);
+            installationDone(false);
+            mUpdaterController.getActualUpdate(downloadId)
+                    .setStatus(UpdateStatus.INSTALLATION_FAILED);
+            mUpdaterController.notifyUpdateChange(downloadId);
+        }
+    }
+
+    /**
+     * Hand the prepared payload to update_engine. cancel() waits until it's done, and
+     * then cancels through update_engine, so the payload can't be applied after the
+     * installation was cancelled.
+     */
+    private void applyPreparedPayload(String downloadId, String uri, long offset, long size,
+            String[] headerKeyValuePairs) {
+        synchronized (mPrepareLock) {
+            if (isPreparationCancelled()) {
+                Log.d(TAG, "Preparation of " + uri + " cancelled");
+                return;
+            }
+            try {
+                applyPayload(downloadId, uri, offset, size, headerKeyValuePairs);
+            } catch (ServiceSpecificException e) {
+                Log.e(TAG, "update_engine refused " + uri, e);
+                installationDone(false);
+                mUpdaterController.getActualUpdate(downloadId)
+                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.notifyUpdateChange(downloadId);
+            } finally {
+                mPrepareThread = null;
+            }
+        }
+    }
+
+    private void applyPayload(String downloadId, String uri, long offset, long size,
+            String[] headerKeyValuePairs) {
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
+                installationDone(false);
                 mUpdaterController.getActualUpdate(downloadId)
                         .setStatus(UpdateStatus.INSTALLATION_FAILED);
                 mUpdaterController.notifyUpdateChange(downloadId);
@@ -212,9 +334,8 @@ class ABUpdateInstaller {
                 .getBoolean(Constants.PREF_AB_PERF_MODE, false);
         mUpdateEngine.setPerformanceMode(enableABPerfMode);
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
         try {
-            mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+            mUpdateEngine.applyPayload(uri, offset, size, headerKeyValuePairs);
         } catch (ServiceSpecificException e) {
             if (e.errorCode == 66 /* kUpdateAlreadyInstalled */) {
                 installationDone(true);
@@ -270,12 +391,19 @@ class ABUpdateInstaller {
             return;
         }
 
-        if (!mBound) {
-            Log.e(TAG, "Not connected to update engine");
-            return;
+        synchronized (mPrepareLock) {
+            if (mPrepareThread != null) {
+                // Nothing was applied yet, the thread gives up once it sees it's no
+                // longer the preparing one
+                mPrepareThread.interrupt();
+                mPrepareThread = null;
+            } else if (!mBound) {
+                Log.e(TAG, "Not connected to update engine");
+                return;
+            } else {
+                mUpdateEngine.cancel();
+            }
         }
-
-        mUpdateEngine.cancel();
         installationDone(false);
 
         mUpdaterController.getActualUpdate(mDownloadId)
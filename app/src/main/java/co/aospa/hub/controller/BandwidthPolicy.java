@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.controller;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.os.PowerManager;
+
+import co.aospa.hub.R;
+import co.aospa.hub.download.BandwidthGovernor;
+
+/**
+ * Decides how fast downloads can go: the limit configured for the type of the
+ * current network, lowered further when battery saver is on or the device is hot.
+ */
+class BandwidthPolicy implements BandwidthGovernor.RateSource {
+
+    private final Context mContext;
+
+    BandwidthPolicy(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public long getRate() {
+        Resources resources = mContext.getResources();
+        long rate = getNetworkRate(resources);
+
+        PowerManager pm = mContext.getSystemService(PowerManager.class);
+        if (pm.isPowerSaveMode()) {
+            rate = lower(rate, resources.getInteger(R.integer.download_rate_limit_battery_saver));
+        }
+        int thermalStatus = pm.getCurrentThermalStatus();
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            rate = lower(rate, resources.getInteger(R.integer.download_rate_limit_thermal_severe));
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            rate = lower(rate,
+                    resources.getInteger(R.integer.download_rate_limit_thermal_moderate));
+        }
+        return rate;
+    }
+
+    private long getNetworkRate(Resources resources) {
+        ConnectivityManager cm = mContext.getSystemService(ConnectivityManager.class);
+        NetworkCapabilities capabilities = cm.getNetworkCapabilities(cm.getActiveNetwork());
+        if (capabilities == null) {
+            return 0;
+        }
+        final int limit;
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            limit = resources.getInteger(R.integer.download_rate_limit_ethernet);
+        } else if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+            limit = resources.getInteger(R.integer.download_rate_limit_unmetered);
+        } else {
+            limit = resources.getInteger(R.integer.download_rate_limit_metered);
+        }
+        return limit * 1024L;
+    }
+
+    /**
+     * @param rate the current rate in bytes per second, 0 if unlimited
+     * @param limit the limit in KiB/s, 0 if unlimited
+     */
+    private static long lower(long rate, int limit) {
+        if (limit <= 0) {
+            return rate;
+        }
+        return rate > 0 ? Math.min(rate, limit * 1024L) : limit * 1024L;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.controller;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks payload.bin against the sizes and hashes listed in payload_properties.txt.
+ * update_engine only finds a bad payload after writing partitions for minutes, this
+ * finds it before anything is applied.
+ */
+class PayloadValidator {
+
+    private static final String TAG = "PayloadValidator";
+
+    private static final String FILE_HASH = "FILE_HASH";
+    private static final String FILE_SIZE = "FILE_SIZE";
+    private static final String METADATA_HASH = "METADATA_HASH";
+    private static final String METADATA_SIZE = "METADATA_SIZE";
+
+    // Payloads can be larger than a single mapping can be
+    private static final long MAP_SIZE = 64 * 1024 * 1024;
+
+    private PayloadValidator() {
+    }
+
+    /**
+     * @param file the package, with payload.bin stored uncompressed
+     * @param offset the offset of payload.bin in the package
+     * @param size the size of payload.bin
+     * @param headerKeyValuePairs the lines of payload_properties.txt
+     * @throws InterruptedIOException if the thread was interrupted
+     * @throws IOException if the payload doesn't match its properties
+     */
+    static void validate(File file, long offset, long size, String[] headerKeyValuePairs)
+            throws IOException {
+        Map<String, String> properties = new HashMap<>();
+        for (String pair : headerKeyValuePairs) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                properties.put(pair.substring(0, separator).trim(),
+                        pair.substring(separator + 1).trim());
+            }
+        }
+
+        final long fileSize = getSize(properties, FILE_SIZE);
+        final long metadataSize = getSize(properties, METADATA_SIZE);
+        final byte[] fileHash = getHash(properties, FILE_HASH);
+        final byte[] metadataHash = getHash(properties, METADATA_HASH);
+        if (fileSize >= 0 && fileSize != size) {
+            throw new IOException("payload.bin is " + size + " bytes, " +
+                    FILE_SIZE + " is " + fileSize);
+        }
+        if (metadataSize > size) {
+            throw new IOException("payload.bin is " + size + " bytes, " +
+                    METADATA_SIZE + " is " + metadataSize);
+        }
+        if (fileHash == null && (metadataHash == null || metadataSize < 0)) {
+            Log.w(TAG, "No hashes to check the payload against");
+            return;
+        }
+
+        MessageDigest fileDigest;
+        MessageDigest metadataDigest;
+        try {
+            fileDigest = MessageDigest.getInstance("SHA-256");
+            metadataDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        // Only read as far as needed when only the metadata can be checked
+        final long hashedSize = fileHash != null ? size : metadataSize;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (offset < 0 || offset + size > channel.size()) {
+                throw new IOException("payload.bin goes past the end of " + file.getName());
+            }
+            for (long position = 0; position < hashedSize; position += MAP_SIZE) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Payload validation interrupted");
+                }
+                final long length = Math.min(MAP_SIZE, hashedSize - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset + position, length);
+                if (position < metadataSize) {
+                    ByteBuffer metadata = buffer.duplicate();
+                    metadata.limit((int) Math.min(length, metadataSize - position));
+                    metadataDigest.update(metadata);
+                }
+                if (fileHash != null) {
+                    fileDigest.update(buffer);
+                }
+            }
+        }
+
+        if (metadataHash != null && metadataSize >= 0 &&
+                !MessageDigest.isEqual(metadataHash, metadataDigest.digest())) {
+            throw new IOException("The payload metadata doesn't match " + METADATA_HASH);
+        }
+        if (fileHash != null && !MessageDigest.isEqual(fileHash, fileDigest.digest())) {
+            throw new IOException("payload.bin doesn't match " + FILE_HASH);
+        }
+        Log.d(TAG, "Payload of " + file.getName() + " validated");
+    }
+
+    private static long getSize(Map<String, String> properties, String key)
+            throws IOException {
+        String value = properties.get(key);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid " + key + " " + value, e);
+        }
+    }
+
+    private static byte[] getHash(Map<String, String> properties, String key)
+            throws IOException {
+        String value = properties.get(key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid " + key + " " + value, e);
+        }
+    }
+}
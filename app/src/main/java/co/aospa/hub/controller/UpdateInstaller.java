@@ -17,7 +17,6 @@ package co.aospa.hub.controller;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 
@@ -115,18 +114,12 @@ class UpdateInstaller {
         File uncryptFile = new File(uncryptFilePath);
 
         Runnable copyUpdateRunnable = new Runnable() {
-            private long mLastUpdate = -1;
-
             final FileUtils.ProgressCallBack mProgressCallBack = new FileUtils.ProgressCallBack() {
                 @Override
                 public void update(int progress) {
-                    long now = SystemClock.elapsedRealtime();
-                    if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(progress);
-                        mUpdaterController.notifyInstallProgress(update.getDownloadId());
-                        mLastUpdate = now;
-                    }
+                    mUpdaterController.getActualUpdate(update.getDownloadId())
+                            .setInstallProgress(progress);
+                    mUpdaterController.notifyInstallProgress(update.getDownloadId());
                 }
             };
 
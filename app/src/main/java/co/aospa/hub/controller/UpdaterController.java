@@ -18,28 +18,51 @@ package co.aospa.hub.controller;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
-import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.storage.StorageManager;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
 
+import co.aospa.hub.R;
 import co.aospa.hub.UpdatesDbHelper;
+import co.aospa.hub.download.BandwidthGovernor;
 import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.DownloadJournal;
+import co.aospa.hub.download.RemoteZipInspector;
+import co.aospa.hub.download.RetryPolicy;
+import co.aospa.hub.misc.Constants;
+import co.aospa.hub.misc.PackageVerifier;
 import co.aospa.hub.misc.Utils;
+import co.aospa.hub.model.PackageIndex;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateInfo;
+import co.aospa.hub.model.UpdatePackage;
 import co.aospa.hub.model.UpdateStatus;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class UpdaterController {
 
@@ -49,13 +72,25 @@ public class UpdaterController {
     public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
 
+    public static final int DOWNLOAD_PRIORITY_LOW = -1;
+    public static final int DOWNLOAD_PRIORITY_NORMAL = 0;
+    public static final int DOWNLOAD_PRIORITY_HIGH = 1;
+
     private final String TAG = "UpdaterController";
 
     private static UpdaterController sUpdaterController;
 
-    private static final int MAX_REPORT_INTERVAL_MS = 1000;
+    private static final int DOWNLOAD_SEGMENTS = 4;
+    private static final int DOWNLOAD_MAX_RETRIES = 10;
+    private static final long DOWNLOAD_RETRY_INITIAL_DELAY_MS = 2000;
+    private static final long DOWNLOAD_RETRY_MAX_DELAY_MS = 5 * 60 * 1000;
+    private static final long DOWNLOAD_STALL_TIMEOUT_MS = 30000;
+    private static final long DOWNLOAD_MIN_SPEED = 8 * 1024;
 
     private final Context mContext;
+    private final BandwidthGovernor mBandwidthGovernor;
+    private final RetryPolicy mRetryPolicy = new RetryPolicy(DOWNLOAD_MAX_RETRIES,
+            DOWNLOAD_RETRY_INITIAL_DELAY_MS, DOWNLOAD_RETRY_MAX_DELAY_MS);
     private final LocalBroadcastManager mBroadcastManager;
     private final UpdatesDbHelper mUpdatesDbHelper;
 
@@ -64,12 +99,23 @@ public class UpdaterController {
     private final File mDownloadRoot;
 
     private int mActiveDownloads = 0;
+    private final int mMaxActiveDownloads;
+    private long mQueueSequence = 0;
+    private Network mNetwork;
+    private boolean mNetworkMetered;
+    private boolean mNetworkCallbackRegistered;
     private final Set<String> mVerifyingUpdates = new HashSet<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Reserving space can take a while, one download at a time is enough
+    private final ExecutorService mSpaceExecutor = Executors.newSingleThreadExecutor();
+    // Catalogs can list many updates, inspect a couple of them at a time
+    private final ExecutorService mInspectExecutor = Executors.newFixedThreadPool(2);
 
     public static synchronized UpdaterController getInstance(Context context) {
         if (sUpdaterController == null) {
             sUpdaterController = new UpdaterController(context);
         }
+        sUpdaterController.registerNetworkCallback();
         return sUpdaterController;
     }
 
@@ -81,23 +127,64 @@ public class UpdaterController {
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater:wakelock");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
+        mBandwidthGovernor = new BandwidthGovernor(new BandwidthPolicy(mContext));
+        mMaxActiveDownloads = Math.max(1,
+                mContext.getResources().getInteger(R.integer.max_concurrent_downloads));
 
         Utils.cleanupDownloadsDir(context);
 
         for (Update update : mUpdatesDbHelper.getUpdates()) {
             addUpdate(update, false);
         }
+
+    }
+
+    private void registerNetworkCallback() {
+        if (mNetworkCallbackRegistered) {
+            return;
+        }
+        mNetworkMetered = Utils.isNetworkMetered(mContext);
+        ConnectivityManager cm = mContext.getSystemService(ConnectivityManager.class);
+        cm.registerDefaultNetworkCallback(mNetworkCallback, mMainHandler);
+        mNetworkCallbackRegistered = true;
+    }
+
+    /**
+     * Stop following the network, to be called when the service that owns the
+     * controller is destroyed. Getting the instance again follows it again.
+     */
+    public void unregisterNetworkCallback() {
+        if (!mNetworkCallbackRegistered) {
+            return;
+        }
+        ConnectivityManager cm = mContext.getSystemService(ConnectivityManager.class);
+        cm.unregisterNetworkCallback(mNetworkCallback);
+        mNetworkCallbackRegistered = false;
+        mNetwork = null;
     }
 
     private static class DownloadEntry {
         final Update mUpdate;
         DownloadClient mDownloadClient;
+        BandwidthGovernor mBandwidthShare;
+        boolean mQueued;
+        boolean mQueuedResume;
+        int mPriority;
+        long mQueueSequence;
+        // Paused because of the network, resumed once an allowed one is back
+        boolean mPausedForNetwork;
+        PackageVerifier mVerifier;
+        // Set while the space of the download is being reserved, before it starts
+        Object mReservation;
+        boolean mReservationResume;
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
     }
 
     private final Map<String, DownloadEntry> mDownloads = new HashMap<>();
+    // Updates that turned out not to be installable on this device
+    private final Set<String> mUnusableUpdates = new HashSet<>();
 
     void notifyUpdateChange(String downloadId) {
         Intent intent = new Intent();
@@ -146,9 +233,70 @@ public class UpdaterController {
             return;
         }
         entry.mDownloadClient = null;
+        if (entry.mBandwidthShare != null) {
+            entry.mBandwidthShare.release();
+            entry.mBandwidthShare = null;
+        }
         mActiveDownloads--;
     }
 
+    /**
+     * Put the download in the queue if as many as allowed are already running,
+     * it's started once its turn comes
+     *
+     * @return true if the download was queued
+     */
+    private boolean enqueueIfBusy(DownloadEntry entry, boolean resume, int priority) {
+        if (mActiveDownloads < mMaxActiveDownloads) {
+            return false;
+        }
+        final String downloadId = entry.mUpdate.getDownloadId();
+        Log.d(TAG, "Queueing " + downloadId + ", " + mActiveDownloads + " downloads running");
+        entry.mQueued = true;
+        entry.mQueuedResume = resume;
+        entry.mPriority = priority;
+        entry.mQueueSequence = mQueueSequence++;
+        entry.mUpdate.setStatus(UpdateStatus.QUEUED);
+        notifyUpdateChange(downloadId);
+        return true;
+    }
+
+    /**
+     * Start queued downloads while there's room for them, by priority and then in
+     * the order they were queued. Downloads that can't start, e.g. for lack of space,
+     * leave the queue and let the next ones go.
+     */
+    private void startNextDownload() {
+        while (mActiveDownloads < mMaxActiveDownloads) {
+            DownloadEntry next = null;
+            for (DownloadEntry entry : mDownloads.values()) {
+                if (entry.mQueued && (next == null || entry.mPriority > next.mPriority ||
+                        (entry.mPriority == next.mPriority &&
+                                entry.mQueueSequence < next.mQueueSequence))) {
+                    next = entry;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            next.mQueued = false;
+            if (next.mQueuedResume) {
+                resumeDownload(next.mUpdate.getDownloadId(), next.mPriority);
+            } else {
+                startDownload(next.mUpdate.getDownloadId(), next.mPriority);
+            }
+        }
+    }
+
+    private boolean hasQueuedDownloads() {
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.mQueued) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private DownloadClient.DownloadCallback getDownloadCallback(final String downloadId) {
         return new DownloadClient.DownloadCallback() {
 
@@ -180,44 +328,73 @@ public class UpdaterController {
             @Override
             public void onSuccess() {
                 Log.d(TAG, "Download complete");
-                DownloadEntry entry = mDownloads.get(downloadId);
-                if (entry != null) {
-                    Update update = entry.mUpdate;
-                    update.setStatus(UpdateStatus.VERIFYING);
-                    removeDownloadClient(entry);
-                    verifyUpdateAsync(downloadId);
-                    notifyUpdateChange(downloadId);
-                    tryReleaseWakelock();
-                }
+                // The queue belongs to the main thread, the next download starts from there
+                mMainHandler.post(() -> {
+                    DownloadEntry entry = mDownloads.get(downloadId);
+                    if (entry != null) {
+                        Update update = entry.mUpdate;
+                        String sha256 = entry.mDownloadClient != null ?
+                                entry.mDownloadClient.getSha256() : null;
+                        removeDownloadClient(entry);
+                        if (sha256 != null && !sha256.equals(update.getSha256())) {
+                            // No need to read the whole file again to know it's corrupted
+                            Log.e(TAG, "Checksum mismatch, expected " + update.getSha256() +
+                                    " but got " + sha256);
+                            //noinspection ResultOfMethodCallIgnored
+                            update.getFile().delete();
+                            setVerificationFailed(update);
+                        } else {
+                            update.setStatus(UpdateStatus.VERIFYING);
+                            verifyUpdateAsync(downloadId, sha256 != null);
+                        }
+                        notifyUpdateChange(downloadId);
+                        startNextDownload();
+                        tryReleaseWakelock();
+                    }
+                });
             }
 
             @Override
             public void onFailure(boolean cancelled) {
-                if (cancelled) {
-                    Log.d(TAG, "Download cancelled");
-                    // Already notified
-                } else {
+                mMainHandler.post(() -> {
+                    if (cancelled) {
+                        Log.d(TAG, "Download cancelled");
+                        // Already notified
+                    } else {
+                        DownloadEntry entry = mDownloads.get(downloadId);
+                        if (entry != null) {
+                            Update update = entry.mUpdate;
+                            Log.e(TAG, "Download failed");
+                            removeDownloadClient(entry);
+                            update.setStatus(UpdateStatus.PAUSED_ERROR);
+                            notifyUpdateChange(downloadId);
+                        }
+                    }
+                    startNextDownload();
+                    tryReleaseWakelock();
+                });
+            }
+
+            @Override
+            public void onStall() {
+                mMainHandler.post(() -> {
                     DownloadEntry entry = mDownloads.get(downloadId);
                     if (entry != null) {
-                        Update update = entry.mUpdate;
-                        Log.e(TAG, "Download failed");
-                        removeDownloadClient(entry);
-                        update.setStatus(UpdateStatus.PAUSED_ERROR);
-                        notifyUpdateChange(downloadId);
+                        Log.d(TAG, "Download of " + downloadId + " stalled, reconnecting");
+                        // Don't keep showing the speed from before the stall
+                        entry.mUpdate.setSpeed(0);
+                        notifyDownloadProgress(downloadId);
                     }
-                }
-                tryReleaseWakelock();
+                });
             }
         };
     }
 
     private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
         return new DownloadClient.ProgressListener() {
-            private long mLastUpdate = 0;
-            private int mProgress = 0;
-
             @Override
-            public void update(long bytesRead, long contentLength, long speed, long eta) {
+            public void update(long bytesRead, long contentLength, long speed, long eta,
+                    long speedLimit) {
                 DownloadEntry entry = mDownloads.get(downloadId);
                 if (entry == null) {
                     return;
@@ -233,62 +410,112 @@ public class UpdaterController {
                 if (contentLength <= 0) {
                     return;
                 }
-                final long now = SystemClock.elapsedRealtime();
-                int progress = Math.round(bytesRead * 100f / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
-                    mProgress = progress;
-                    mLastUpdate = now;
-                    update.setProgress(progress);
-                    update.setEta(eta);
-                    update.setSpeed(speed);
-                    notifyDownloadProgress(downloadId);
-                }
+                // The client already caps how often this is called
+                update.setProgress(Math.round(bytesRead * 100f / contentLength));
+                update.setEta(eta);
+                update.setSpeed(speed);
+                update.setSpeedLimit(speedLimit);
+                notifyDownloadProgress(downloadId);
             }
         };
     }
 
-    @SuppressLint("SetWorldReadable")
     private void verifyUpdateAsync(final String downloadId) {
+        verifyUpdateAsync(downloadId, false);
+    }
+
+    /**
+     * @param digestVerified whether the file is known to match the digest published
+     *                       with the update, its entries don't need to be checked then
+     */
+    @SuppressLint("SetWorldReadable")
+    private void verifyUpdateAsync(final String downloadId, final boolean digestVerified) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return;
+        }
+        Update update = entry.mUpdate;
+        File file = update.getFile();
+        PackageVerifier verifier = new PackageVerifier(file)
+                .setCheckEntries(!digestVerified)
+                .setListener((bytes, total, progress, speed, eta) -> {
+                    update.setProgress(Math.max(progress, 0));
+                    update.setEta(eta);
+                    notifyDownloadProgress(downloadId);
+                });
+        entry.mVerifier = verifier;
+        update.setProgress(0);
+        update.setEta(0);
+        update.setSpeed(0);
         mVerifyingUpdates.add(downloadId);
         new Thread(() -> {
-            DownloadEntry entry = mDownloads.get(downloadId);
-            if (entry != null) {
-                Update update = entry.mUpdate;
-                File file = update.getFile();
-                if (file.exists() && verifyPackage(file)) {
+            try {
+                if (!file.exists()) {
+                    throw new FileNotFoundException(file.getName() + " doesn't exist");
+                }
+                PackageIndex index = null;
+                if (mUpdatesDbHelper.isPackageVerified(file, update.getSha256())) {
+                    Log.d(TAG, file.getName() + " already verified and unchanged");
+                    // Indexed back then, no need to open the package again
+                    index = update.getPackageIndex();
+                    if (index == null) {
+                        index = mUpdatesDbHelper.getPackageIndex(downloadId, file);
+                    }
+                } else {
+                    verifier.verify();
+                    Log.d(TAG, "Verification successful");
+                    mUpdatesDbHelper.addVerifiedPackage(file,
+                            digestVerified ? update.getSha256() : null);
+                }
+                if (index == null) {
+                    // Everything later needs from the package, read once
+                    index = Utils.readPackageIndex(file);
+                    update.setPackageIndex(index);
+                    mUpdatesDbHelper.changePackageIndex(update);
+                } else {
+                    update.setPackageIndex(index);
+                }
+                update.setPackageType(index.isAB() ?
+                        Update.PACKAGE_TYPE_AB : Update.PACKAGE_TYPE_NON_AB);
+                //noinspection ResultOfMethodCallIgnored
+                file.setReadable(true, false);
+                // Its length can be trusted from now on
+                DownloadJournal.delete(file);
+                update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
+                mUpdatesDbHelper.changeUpdateStatus(update);
+                update.setProgress(100);
+                update.setStatus(UpdateStatus.VERIFIED);
+            } catch (InterruptedIOException e) {
+                // Paused, the file is complete and gets verified again once resumed
+                Log.d(TAG, "Verification of " + downloadId + " cancelled");
+                update.setProgress(100);
+                update.setStatus(UpdateStatus.PAUSED);
+            } catch (Exception e) {
+                Log.e(TAG, "Verification failed", e);
+                mUpdatesDbHelper.removeVerifiedPackage(file);
+                if (file.exists()) {
                     //noinspection ResultOfMethodCallIgnored
-                    file.setReadable(true, false);
-                    update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
-                    mUpdatesDbHelper.changeUpdateStatus(update);
-                    update.setStatus(UpdateStatus.VERIFIED);
+                    file.delete();
                 } else {
-                    update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
-                    mUpdatesDbHelper.removeUpdate(downloadId);
-                    update.setProgress(0);
-                    update.setStatus(UpdateStatus.VERIFICATION_FAILED);
+                    // The download was probably stopped. Exit silently
+                    Log.e(TAG, "Error while verifying the file", e);
                 }
+                setVerificationFailed(update);
+            } finally {
+                update.setEta(0);
+                entry.mVerifier = null;
                 mVerifyingUpdates.remove(downloadId);
-                notifyUpdateChange(downloadId);
             }
+            notifyUpdateChange(downloadId);
         }).start();
     }
 
-    private boolean verifyPackage(File file) {
-        try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
-            Log.e(TAG, "Verification successful");
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Verification failed", e);
-            if (file.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                file.delete();
-            } else {
-                // The download was probably stopped. Exit silently
-                Log.e(TAG, "Error while verifying the file", e);
-            }
-            return false;
-        }
+    private void setVerificationFailed(Update update) {
+        DownloadJournal.delete(update.getFile());
+        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        mUpdatesDbHelper.removeUpdate(update.getDownloadId());
+        update.setProgress(0);
+        update.setStatus(UpdateStatus.VERIFICATION_FAILED);
     }
 
     private boolean fixUpdateStatus(Update update) {
@@ -300,8 +527,8 @@ public class UpdaterController {
                     return false;
                 } else if (update.getFileSize() > 0) {
                     update.setStatus(UpdateStatus.PAUSED);
-                    int progress = Math.round(
-                            update.getFile().length() * 100f / update.getFileSize());
+                    long downloaded = DownloadJournal.getDownloadedBytes(update.getFile());
+                    int progress = Math.round(downloaded * 100f / update.getFileSize());
                     update.setProgress(progress);
                 }
                 break;
@@ -332,17 +559,27 @@ public class UpdaterController {
 
     public boolean addUpdate(final UpdateInfo updateInfo, boolean availableOnline) {
         Log.d(TAG, "Adding download: " + updateInfo.getDownloadId());
+        if (mUnusableUpdates.contains(updateInfo.getDownloadId())) {
+            Log.d(TAG, "Download (" + updateInfo.getDownloadId() + ") can't be installed");
+            return false;
+        }
         if (mDownloads.containsKey(updateInfo.getDownloadId())) {
             Log.d(TAG, "Download (" + updateInfo.getDownloadId() + ") already added");
             DownloadEntry entry = mDownloads.get(updateInfo.getDownloadId());
             if (entry != null) {
                 Update updateAdded = entry.mUpdate;
                 updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
-                updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+                updateAdded.setIncrementals(updateInfo.getIncrementals());
+                selectPackage(updateAdded, updateInfo);
             }
             return false;
         }
         Update update = new Update(updateInfo);
+        selectPackage(update, updateInfo);
+        if (update.getPackageIndex() != null) {
+            update.setPackageType(update.getPackageIndex().isAB() ?
+                    Update.PACKAGE_TYPE_AB : Update.PACKAGE_TYPE_NON_AB);
+        }
         if (!fixUpdateStatus(update) && !availableOnline) {
             update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
             deleteUpdateAsync(update);
@@ -351,13 +588,221 @@ public class UpdaterController {
         }
         update.setAvailableOnline(availableOnline);
         mDownloads.put(update.getDownloadId(), new DownloadEntry(update));
+        if (availableOnline && update.getFile() == null && Utils.canInstall(update)) {
+            inspectUpdateAsync(update.getDownloadId(), update.getDownloadUrl());
+        }
         return true;
     }
 
-    @SuppressLint("WakelockTimeout")
+    /**
+     * Find out the type and the actual target build of an update before downloading
+     * it, by reading the few files we need straight from the server. Updates that
+     * can't be installed on this device are removed from the list: the ones of the
+     * wrong type, meant for other devices, older than the running build or whose
+     * payload doesn't match its properties.
+     */
+    private void inspectUpdateAsync(final String downloadId, final String url) {
+        mInspectExecutor.execute(() -> {
+            final int packageType;
+            long timestamp = -1;
+            boolean compatible = true;
+            try {
+                RemoteZipInspector inspector = RemoteZipInspector.open(url);
+                packageType = inspector.hasEntry(Constants.AB_PAYLOAD_BIN_PATH) &&
+                        inspector.hasEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) ?
+                        Update.PACKAGE_TYPE_AB : Update.PACKAGE_TYPE_NON_AB;
+                if (packageType == Update.PACKAGE_TYPE_AB) {
+                    final long payloadSize = Utils.getPayloadFileSize(
+                            Utils.parsePayloadProperties(inspector.readEntry(
+                                    Constants.AB_PAYLOAD_PROPERTIES_PATH)));
+                    if (payloadSize != inspector.getEntrySize(Constants.AB_PAYLOAD_BIN_PATH)) {
+                        Log.d(TAG, "The payload of " + downloadId + " isn't the one its " +
+                                "properties describe");
+                        compatible = false;
+                    }
+                }
+                if (inspector.hasEntry(Constants.METADATA_PATH)) {
+                    String metadata = new String(inspector.readEntry(Constants.METADATA_PATH),
+                            StandardCharsets.UTF_8);
+                    timestamp = Utils.getPostTimestamp(metadata);
+                    compatible &= Utils.isForThisDevice(metadata);
+                }
+            } catch (IOException | NumberFormatException e) {
+                Log.e(TAG, "Could not inspect " + downloadId, e);
+                return;
+            }
+            final long postTimestamp = timestamp;
+            final boolean isCompatible = compatible;
+            mMainHandler.post(() -> onUpdateInspected(downloadId, packageType, postTimestamp,
+                    isCompatible));
+        });
+    }
+
+    private void onUpdateInspected(String downloadId, int packageType, long postTimestamp,
+            boolean compatible) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return;
+        }
+        Update update = entry.mUpdate;
+        update.setPackageType(packageType);
+        if (postTimestamp > 0 && postTimestamp != update.getTimestamp()) {
+            Log.d(TAG, "Build date of " + downloadId + " is " + postTimestamp +
+                    ", not " + update.getTimestamp());
+            update.setTimestamp(postTimestamp);
+        }
+        boolean usable = compatible && Utils.canInstall(update) &&
+                (packageType == Update.PACKAGE_TYPE_AB) == Utils.isABDevice();
+        if (!usable && update.getStatus() == UpdateStatus.UNKNOWN &&
+                update.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN) {
+            Log.d(TAG, downloadId + " can't be installed on this device, removing");
+            mUnusableUpdates.add(downloadId);
+            mDownloads.remove(downloadId);
+            notifyUpdateDelete(downloadId);
+        } else {
+            notifyUpdateChange(downloadId);
+        }
+    }
+
+    /**
+     * Point the update to the smallest package that can be installed on top of the
+     * running build, an incremental one if the catalog has any generated from it or
+     * the full package otherwise. Once the download started, the update sticks to
+     * the package of the size it was given, so that the file stays consistent.
+     */
+    private void selectPackage(Update update, UpdateInfo catalogUpdate) {
+        final boolean started = update.getFile() != null;
+        final long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+        final String buildIncremental = SystemProperties.get(
+                Constants.PROP_BUILD_VERSION_INCREMENTAL);
+        UpdatePackage selected = null;
+        for (UpdatePackage incremental : catalogUpdate.getIncrementals()) {
+            if (!incremental.appliesTo(buildTimestamp, buildIncremental) ||
+                    incremental.getFileSize() <= 0) {
+                continue;
+            }
+            if (started) {
+                if (incremental.getFileSize() == update.getFileSize()) {
+                    selected = incremental;
+                    break;
+                }
+            } else if (incremental.getFileSize() < (selected != null ?
+                    selected.getFileSize() : catalogUpdate.getFileSize())) {
+                selected = incremental;
+            }
+        }
+
+        if (selected == null) {
+            update.setDownloadUrl(catalogUpdate.getDownloadUrl());
+            if (!started) {
+                update.setName(catalogUpdate.getName());
+                update.setFileSize(catalogUpdate.getFileSize());
+                update.setSha256(catalogUpdate.getSha256());
+            } else if (catalogUpdate.getSha256() != null) {
+                // Updates restored from the database don't know their digest
+                update.setSha256(catalogUpdate.getSha256());
+            }
+            return;
+        }
+        Log.d(TAG, "Using incremental " + selected.getName() + " for " +
+                update.getDownloadId() + ", " + selected.getFileSize() + " bytes instead of " +
+                catalogUpdate.getFileSize());
+        update.setDownloadUrl(selected.getDownloadUrl());
+        update.setSha256(selected.getSha256());
+        if (!started) {
+            update.setName(selected.getName());
+            update.setFileSize(selected.getFileSize());
+        }
+    }
+
+    /**
+     * Make sure the given amount of bytes can be written to the given directory,
+     * freeing cached data of other apps if needed, so that we don't find out the
+     * storage is full after downloading for a long time.
+     *
+     * @param bytes the number of bytes, 0 or less if unknown
+     * @return false if there isn't enough space
+     */
+    private boolean reserveSpace(File dir, long bytes) {
+        if (bytes <= 0) {
+            return true;
+        }
+        StorageManager sm = mContext.getSystemService(StorageManager.class);
+        UUID uuid;
+        try {
+            uuid = sm.getUuidForPath(dir);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not get the volume of " + dir, e);
+            // Let the download find out
+            return true;
+        }
+        try {
+            long allocatable = sm.getAllocatableBytes(uuid);
+            if (allocatable < bytes) {
+                Log.e(TAG, "Not enough space, need " + bytes + " bytes but only " +
+                        allocatable + " can be allocated");
+                return false;
+            }
+            sm.allocateBytes(uuid, bytes);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not allocate " + bytes + " bytes", e);
+            return false;
+        }
+    }
+
+    /**
+     * Reserve the space of a download on a worker thread, since allocating can evict
+     * cached data for seconds, and continue on the main thread once done. The download
+     * keeps its slot and shows as starting meanwhile.
+     *
+     * @param resume whether the download resumes, to know where to go back if paused
+     * @param onReserved what to run once the space is reserved
+     */
+    private void reserveSpaceAsync(DownloadEntry entry, boolean resume, File dir, long bytes,
+            Runnable onReserved) {
+        final String downloadId = entry.mUpdate.getDownloadId();
+        final Object reservation = new Object();
+        entry.mReservation = reservation;
+        entry.mReservationResume = resume;
+        mActiveDownloads++;
+        entry.mUpdate.setStatus(UpdateStatus.STARTING);
+        notifyUpdateChange(downloadId);
+        mSpaceExecutor.execute(() -> {
+            final boolean reserved = reserveSpace(dir, bytes);
+            mMainHandler.post(() -> {
+                mActiveDownloads--;
+                if (entry.mReservation != reservation || mDownloads.get(downloadId) != entry) {
+                    // Paused or removed meanwhile, the slot can go to the next one
+                    startNextDownload();
+                    tryReleaseWakelock();
+                    return;
+                }
+                entry.mReservation = null;
+                if (reserved) {
+                    onReserved.run();
+                } else {
+                    entry.mUpdate.setStatus(UpdateStatus.NOT_ENOUGH_SPACE);
+                    notifyUpdateChange(downloadId);
+                    startNextDownload();
+                    tryReleaseWakelock();
+                }
+            });
+        });
+    }
+
     public void startDownload(String downloadId) {
+        startDownload(downloadId, DOWNLOAD_PRIORITY_NORMAL);
+    }
+
+    /**
+     * @param priority one of the DOWNLOAD_PRIORITY_* values, downloads waiting in the
+     *                 queue are started in priority order
+     */
+    public void startDownload(String downloadId, int priority) {
         Log.d(TAG, "Starting " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId) ||
+                isQueued(downloadId)) {
             return;
         }
         DownloadEntry entry = mDownloads.get(downloadId);
@@ -365,6 +810,18 @@ public class UpdaterController {
             Log.e(TAG, "Could not get download entry");
             return;
         }
+        entry.mPausedForNetwork = false;
+        entry.mPriority = priority;
+        if (enqueueIfBusy(entry, false, priority)) {
+            return;
+        }
+        reserveSpaceAsync(entry, false, mDownloadRoot, entry.mUpdate.getFileSize(),
+                () -> startDownloadClient(entry));
+    }
+
+    @SuppressLint("WakelockTimeout")
+    private void startDownloadClient(DownloadEntry entry) {
+        final String downloadId = entry.mUpdate.getDownloadId();
         Update update = entry.mUpdate;
         File destination = new File(mDownloadRoot, update.getName());
         if (destination.exists()) {
@@ -372,6 +829,8 @@ public class UpdaterController {
             Log.d(TAG, "Changing name with " + destination.getName());
         }
         update.setFile(destination);
+        update.setPackageIndex(null);
+        BandwidthGovernor bandwidthShare = mBandwidthGovernor.newShare();
         DownloadClient downloadClient;
         try {
             downloadClient = new DownloadClient.Builder()
@@ -380,24 +839,40 @@ public class UpdaterController {
                     .setDownloadCallback(getDownloadCallback(downloadId))
                     .setProgressListener(getProgressListener(downloadId))
                     .setUseDuplicateLinks(true)
+                    .setSegments(DOWNLOAD_SEGMENTS)
+                    .setComputeSha256(update.getSha256() != null)
+                    .setBandwidthGovernor(bandwidthShare)
+                    .setRetryPolicy(mRetryPolicy)
+                    .setStallTimeout(DOWNLOAD_STALL_TIMEOUT_MS)
+                    .setMinSpeed(DOWNLOAD_MIN_SPEED)
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
+            bandwidthShare.release();
             update.setStatus(UpdateStatus.PAUSED_ERROR);
             notifyUpdateChange(downloadId);
             return;
         }
         addDownloadClient(entry, downloadClient);
+        entry.mBandwidthShare = bandwidthShare;
         update.setStatus(UpdateStatus.STARTING);
         notifyUpdateChange(downloadId);
         downloadClient.start();
         mWakeLock.acquire();
     }
 
-    @SuppressLint("WakelockTimeout")
     public void resumeDownload(String downloadId) {
+        resumeDownload(downloadId, DOWNLOAD_PRIORITY_NORMAL);
+    }
+
+    /**
+     * @param priority one of the DOWNLOAD_PRIORITY_* values, downloads waiting in the
+     *                 queue are started in priority order
+     */
+    public void resumeDownload(String downloadId, int priority) {
         Log.d(TAG, "Resuming " + downloadId);
-        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
+        if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId) ||
+                isQueued(downloadId)) {
             return;
         }
         DownloadEntry entry = mDownloads.get(downloadId);
@@ -405,6 +880,8 @@ public class UpdaterController {
             Log.e(TAG, "Could not get download entry");
             return;
         }
+        entry.mPausedForNetwork = false;
+        entry.mPriority = priority;
         Update update = entry.mUpdate;
         File file = update.getFile();
         if (file == null || !file.exists()) {
@@ -413,37 +890,87 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        if (file.exists() && update.getFileSize() > 0 &&
+                DownloadJournal.getDownloadedBytes(file) >= update.getFileSize()) {
             Log.d(TAG, "File already downloaded, starting verification");
             update.setStatus(UpdateStatus.VERIFYING);
             verifyUpdateAsync(downloadId);
             notifyUpdateChange(downloadId);
-        } else {
-            DownloadClient downloadClient;
-            try {
-                downloadClient = new DownloadClient.Builder()
-                        .setUrl(update.getDownloadUrl())
-                        .setDestination(update.getFile())
-                        .setDownloadCallback(getDownloadCallback(downloadId))
-                        .setProgressListener(getProgressListener(downloadId))
-                        .setUseDuplicateLinks(true)
-                        .build();
-            } catch (IOException exception) {
-                Log.e(TAG, "Could not build download client");
-                update.setStatus(UpdateStatus.PAUSED_ERROR);
-                notifyUpdateChange(downloadId);
-                return;
-            }
-            addDownloadClient(entry, downloadClient);
-            update.setStatus(UpdateStatus.STARTING);
+        } else if (!enqueueIfBusy(entry, true, priority)) {
+            final long bytes = update.getFileSize() > 0 ?
+                    update.getFileSize() - DownloadJournal.getDownloadedBytes(file) : 0;
+            reserveSpaceAsync(entry, true, file.getParentFile(), bytes,
+                    () -> resumeDownloadClient(entry));
+        }
+    }
+
+    @SuppressLint("WakelockTimeout")
+    private void resumeDownloadClient(DownloadEntry entry) {
+        final String downloadId = entry.mUpdate.getDownloadId();
+        Update update = entry.mUpdate;
+        BandwidthGovernor bandwidthShare = mBandwidthGovernor.newShare();
+        DownloadClient downloadClient;
+        try {
+            downloadClient = new DownloadClient.Builder()
+                    .setUrl(update.getDownloadUrl())
+                    .setDestination(update.getFile())
+                    .setDownloadCallback(getDownloadCallback(downloadId))
+                    .setProgressListener(getProgressListener(downloadId))
+                    .setUseDuplicateLinks(true)
+                    .setSegments(DOWNLOAD_SEGMENTS)
+                    .setComputeSha256(update.getSha256() != null)
+                    .setBandwidthGovernor(bandwidthShare)
+                    .setRetryPolicy(mRetryPolicy)
+                    .setStallTimeout(DOWNLOAD_STALL_TIMEOUT_MS)
+                    .setMinSpeed(DOWNLOAD_MIN_SPEED)
+                    .build();
+        } catch (IOException exception) {
+            Log.e(TAG, "Could not build download client");
+            bandwidthShare.release();
+            update.setStatus(UpdateStatus.PAUSED_ERROR);
             notifyUpdateChange(downloadId);
-            downloadClient.resume();
-            mWakeLock.acquire();
+            return;
         }
+        addDownloadClient(entry, downloadClient);
+        entry.mBandwidthShare = bandwidthShare;
+        update.setStatus(UpdateStatus.STARTING);
+        notifyUpdateChange(downloadId);
+        downloadClient.resume();
+        mWakeLock.acquire();
     }
 
     public void pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
+        if (mDownloads.containsKey(downloadId)) {
+            //noinspection ConstantConditions
+            mDownloads.get(downloadId).mPausedForNetwork = false;
+        }
+        if (isQueued(downloadId)) {
+            // Leave the queue, back to where the download was before
+            DownloadEntry entry = mDownloads.get(downloadId);
+            entry.mQueued = false;
+            entry.mUpdate.setStatus(entry.mQueuedResume ?
+                    UpdateStatus.PAUSED : UpdateStatus.UNKNOWN);
+            notifyUpdateChange(downloadId);
+            return;
+        }
+        if (isVerifyingUpdate(downloadId)) {
+            PackageVerifier verifier = mDownloads.get(downloadId).mVerifier;
+            if (verifier != null) {
+                // The status changes once the verification thread is done
+                verifier.cancel();
+            }
+            return;
+        }
+        if (isReservingSpace(downloadId)) {
+            // The slot is released once the reservation is done
+            DownloadEntry entry = mDownloads.get(downloadId);
+            entry.mReservation = null;
+            entry.mUpdate.setStatus(entry.mReservationResume ?
+                    UpdateStatus.PAUSED : UpdateStatus.UNKNOWN);
+            notifyUpdateChange(downloadId);
+            return;
+        }
         if (!isDownloading(downloadId)) {
             return;
         }
@@ -456,6 +983,90 @@ public class UpdaterController {
             entry.mUpdate.setEta(0);
             entry.mUpdate.setSpeed(0);
             notifyUpdateChange(downloadId);
+            startNextDownload();
+        }
+    }
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            if (!capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+                return;
+            }
+            final boolean metered = !capabilities.hasCapability(
+                    NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+            final boolean wasMetered = mNetworkMetered;
+            mNetwork = network;
+            mNetworkMetered = metered;
+            if (!metered || !isMeteredNetworkWarningEnabled()) {
+                resumeDownloadsPausedForNetwork();
+            } else if (!wasMetered) {
+                // Downloads started on a metered network were accepted by the user,
+                // only stop the ones that were meant to go over an unmetered one
+                pauseDownloadsForNetwork("switched to a metered network");
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            if (network.equals(mNetwork)) {
+                mNetwork = null;
+                pauseDownloadsForNetwork("lost the network");
+            }
+        }
+    };
+
+    private boolean isMeteredNetworkWarningEnabled() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return prefs.getBoolean(Constants.PREF_METERED_NETWORK_WARNING,
+                prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true));
+    }
+
+    /**
+     * Pause the running and queued downloads, they can be resumed from where they
+     * stopped once we're on a network we're allowed to download over
+     */
+    private void pauseDownloadsForNetwork(String reason) {
+        List<String> queued = new ArrayList<>();
+        List<String> running = new ArrayList<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.mQueued) {
+                queued.add(entry.mUpdate.getDownloadId());
+            } else if (entry.mDownloadClient != null || entry.mReservation != null) {
+                running.add(entry.mUpdate.getDownloadId());
+            }
+        }
+        if (queued.isEmpty() && running.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Pausing downloads, " + reason);
+        // Empty the queue first, so that pausing doesn't start queued downloads
+        queued.addAll(running);
+        for (String downloadId : queued) {
+            pauseDownload(downloadId);
+            //noinspection ConstantConditions
+            mDownloads.get(downloadId).mPausedForNetwork = true;
+        }
+        tryReleaseWakelock();
+    }
+
+    private void resumeDownloadsPausedForNetwork() {
+        List<DownloadEntry> paused = new ArrayList<>();
+        for (DownloadEntry entry : mDownloads.values()) {
+            if (entry.mPausedForNetwork) {
+                paused.add(entry);
+            }
+        }
+        for (DownloadEntry entry : paused) {
+            final String downloadId = entry.mUpdate.getDownloadId();
+            Log.d(TAG, "Network is back, resuming " + downloadId);
+            // Downloads that were waiting in the queue may not have started yet
+            if (entry.mUpdate.getFile() != null) {
+                resumeDownload(downloadId, entry.mPriority);
+            } else {
+                startDownload(downloadId, entry.mPriority);
+            }
         }
     }
 
@@ -465,6 +1076,8 @@ public class UpdaterController {
             if (file.exists() && !file.delete()) {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
+            DownloadJournal.delete(file);
+            mUpdatesDbHelper.removeVerifiedPackage(file);
             mUpdatesDbHelper.removeUpdate(update.getDownloadId());
         }).start();
     }
@@ -476,6 +1089,7 @@ public class UpdaterController {
         }
         DownloadEntry entry = mDownloads.get(downloadId);
         if (entry != null) {
+            entry.mPausedForNetwork = false;
             Update update = entry.mUpdate;
             update.setStatus(UpdateStatus.DELETED);
             update.setProgress(0);
@@ -511,14 +1125,32 @@ public class UpdaterController {
         return entry != null ? entry.mUpdate : null;
     }
 
+    /**
+     * @return true if the download is running, or about to once its space is reserved
+     */
     public boolean isDownloading(String downloadId) {
         //noinspection ConstantConditions
         return mDownloads.containsKey(downloadId) &&
-                mDownloads.get(downloadId).mDownloadClient != null;
+                (mDownloads.get(downloadId).mDownloadClient != null ||
+                        mDownloads.get(downloadId).mReservation != null);
+    }
+
+    private boolean isReservingSpace(String downloadId) {
+        //noinspection ConstantConditions
+        return mDownloads.containsKey(downloadId) &&
+                mDownloads.get(downloadId).mReservation != null;
+    }
+
+    public boolean isQueued(String downloadId) {
+        //noinspection ConstantConditions
+        return mDownloads.containsKey(downloadId) && mDownloads.get(downloadId).mQueued;
     }
 
+    /**
+     * @return true if downloads are running or waiting for their turn
+     */
     public boolean hasActiveDownloads() {
-        return mActiveDownloads > 0;
+        return mActiveDownloads > 0 || hasQueuedDownloads();
     }
 
     public boolean isVerifyingUpdate() {
@@ -59,6 +59,7 @@ public class UpdaterService extends Service {
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
     public static final String EXTRA_DOWNLOAD_CONTROL = "extra_download_control";
     public static final String ACTION_INSTALL_UPDATE = "action_install_update";
+    public static final String ACTION_STREAM_UPDATE = "action_stream_update";
     public static final String ACTION_INSTALL_STOP = "action_install_stop";
 
     public static final String ACTION_INSTALL_SUSPEND = "action_install_suspend";
@@ -150,6 +151,7 @@ public class UpdaterService extends Service {
     @Override
     public void onDestroy() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mUpdaterController.unregisterNetworkCallback();
         super.onDestroy();
     }
 
@@ -200,7 +202,7 @@ public class UpdaterService extends Service {
                 throw new IllegalArgumentException(update.getDownloadId() + " is not verified");
             }
             try {
-                if (Utils.isABUpdate(update.getFile())) {
+                if (Utils.isABUpdate(update)) {
                     ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
                             mUpdaterController);
                     installer.install(downloadId);
@@ -215,6 +217,15 @@ public class UpdaterService extends Service {
                         .setStatus(UpdateStatus.INSTALLATION_FAILED);
                 mUpdaterController.notifyUpdateChange(downloadId);
             }
+        } else if (ACTION_STREAM_UPDATE.equals(intent.getAction())) {
+            String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
+            UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+            if (!Utils.isABDevice() || update.getPackageType() != Update.PACKAGE_TYPE_AB) {
+                throw new IllegalArgumentException(update.getDownloadId() + " can't be streamed");
+            }
+            ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
+                    mUpdaterController);
+            installer.installStreaming(downloadId);
         } else if (ACTION_INSTALL_STOP.equals(intent.getAction())) {
             if (UpdateInstaller.isInstalling()) {
                 UpdateInstaller installer = UpdateInstaller.getInstance(this,
@@ -265,6 +276,46 @@ public class UpdaterService extends Service {
                 tryStopSelf();
                 break;
             }
+            case UNKNOWN: {
+                // Taken out of the queue before starting, nothing to show unless
+                // another download is running
+                if (!mUpdaterController.hasActiveDownloads()) {
+                    stopForeground(STOP_FOREGROUND_DETACH);
+                    mNotificationBuilder.setOngoing(false);
+                    mNotificationManager.cancel(NOTIFICATION_ID);
+                    tryStopSelf();
+                }
+                break;
+            }
+            case QUEUED: {
+                mNotificationBuilder.mActions.clear();
+                mNotificationBuilder.setProgress(0, 0, false);
+                mNotificationStyle.setSummaryText(null);
+                String text = getString(R.string.download_queued_notification);
+                mNotificationStyle.bigText(text);
+                mNotificationBuilder.setStyle(mNotificationStyle);
+                mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download_done);
+                mNotificationBuilder.setTicker(text);
+                mNotificationBuilder.setOngoing(true);
+                mNotificationBuilder.setAutoCancel(false);
+                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                break;
+            }
+            case NOT_ENOUGH_SPACE: {
+                stopForeground(STOP_FOREGROUND_DETACH);
+                mNotificationBuilder.mActions.clear();
+                mNotificationBuilder.setStyle(null);
+                mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
+                mNotificationBuilder.setProgress(0, 0, false);
+                String text = getString(R.string.download_not_enough_space_notification);
+                mNotificationBuilder.setContentText(text);
+                mNotificationBuilder.setTicker(text);
+                mNotificationBuilder.setOngoing(false);
+                mNotificationBuilder.setAutoCancel(true);
+                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                tryStopSelf();
+                break;
+            }
             case STARTING: {
                 mNotificationBuilder.mActions.clear();
                 mNotificationBuilder.setProgress(0, 0, true);
@@ -467,17 +518,35 @@ public class UpdaterService extends Service {
 
     private void handleDownloadProgressChange(UpdateInfo update) {
         int progress = update.getProgress();
-        mNotificationBuilder.setProgress(100, progress, false);
+        final boolean verifying = update.getStatus() == UpdateStatus.VERIFYING;
+        mNotificationBuilder.setProgress(100, progress, verifying && progress == 0);
 
         String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
         mNotificationStyle.setSummaryText(percent);
 
         setNotificationTitle(update);
 
+        if (verifying) {
+            if (update.getEta() > 0) {
+                CharSequence eta = StringGenerator.formatETA(this, update.getEta() * 1000);
+                mNotificationStyle.bigText(getString(R.string.list_verifying_update_eta, eta));
+            } else {
+                mNotificationStyle.bigText(getString(R.string.verifying_download_notification));
+            }
+            mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+            return;
+        }
+
         String speed = Formatter.formatFileSize(this, update.getSpeed());
         CharSequence eta = StringGenerator.formatETA(this, update.getEta() * 1000);
-        mNotificationStyle.bigText(
-                getString(R.string.text_download_speed, eta, speed));
+        if (update.getSpeedLimit() > 0) {
+            String speedLimit = Formatter.formatFileSize(this, update.getSpeedLimit());
+            mNotificationStyle.bigText(getString(R.string.text_download_speed_limited,
+                    eta, speed, speedLimit));
+        } else {
+            mNotificationStyle.bigText(
+                    getString(R.string.text_download_speed, eta, speed));
+        }
 
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
     }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Token bucket limiting the throughput of all the downloads sharing it. The rate is
+ * asked to a RateSource every few seconds, so it follows the conditions of the device.
+ */
+public class BandwidthGovernor {
+
+    private static final String TAG = "BandwidthGovernor";
+
+    private static final long REFRESH_INTERVAL_MS = 5000;
+    // Allow bursts of this much time at the full rate
+    private static final long MAX_BURST_MS = 1000;
+
+    public interface RateSource {
+        /**
+         * @return the maximum throughput in bytes per second, 0 if unlimited
+         */
+        long getRate();
+    }
+
+    private final RateSource mSource;
+    // The governor this one takes a share of, if any
+    private final BandwidthGovernor mParent;
+
+    private int mShares;
+    private boolean mReleased;
+
+    private long mRate;
+    private long mTokens;
+    private long mLastRefill;
+    private long mLastRefresh = -1;
+
+    public BandwidthGovernor(RateSource source) {
+        mSource = source;
+        mParent = null;
+    }
+
+    private BandwidthGovernor(BandwidthGovernor parent) {
+        mSource = parent::getShareRate;
+        mParent = parent;
+    }
+
+    /**
+     * Get a governor for one of the transfers sharing this one. The rate is split
+     * evenly among the shares not released yet, so that a transfer with more
+     * connections doesn't get more than the others.
+     */
+    public BandwidthGovernor newShare() {
+        synchronized (this) {
+            mShares++;
+        }
+        return new BandwidthGovernor(this);
+    }
+
+    /**
+     * Give the share back, its part of the rate goes to the remaining ones
+     */
+    public void release() {
+        if (mParent == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+        }
+        synchronized (mParent) {
+            mParent.mShares--;
+        }
+    }
+
+    private long getShareRate() {
+        final long rate = getRate();
+        synchronized (this) {
+            return mShares > 1 ? rate / mShares : rate;
+        }
+    }
+
+    /**
+     * @return the current maximum throughput in bytes per second, 0 if unlimited
+     */
+    public synchronized long getRate() {
+        final long now = SystemClock.elapsedRealtime();
+        if (mLastRefresh < 0 || now - mLastRefresh >= REFRESH_INTERVAL_MS) {
+            long rate = mSource.getRate();
+            if (rate != mRate) {
+                Log.d(TAG, "Rate changed to " + rate + " B/s");
+                mRate = rate;
+                mTokens = Math.min(mTokens, getMaxTokens());
+            }
+            mLastRefresh = now;
+        }
+        return mRate;
+    }
+
+    private long getMaxTokens() {
+        return mRate * MAX_BURST_MS / 1000;
+    }
+
+    /**
+     * Take the given amount of bytes from the bucket. The bucket can go into debt,
+     * the caller is expected to wait until it's paid back before transferring more.
+     *
+     * @return how long to wait in milliseconds, 0 if the transfer can go on
+     */
+    synchronized long consume(int bytes) {
+        final long rate = getRate();
+        final long now = SystemClock.elapsedRealtime();
+        if (rate <= 0) {
+            mLastRefill = now;
+            return 0;
+        }
+        mTokens = Math.min(mTokens + (now - mLastRefill) * rate / 1000, getMaxTokens());
+        mLastRefill = now;
+        mTokens -= bytes;
+        return mTokens >= 0 ? 0 : -mTokens * 1000 / rate;
+    }
+}
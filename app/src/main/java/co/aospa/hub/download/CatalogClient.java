@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches the updates list. The list is checked far more often than it changes,
+ * so the validators of the copy we already have are sent along and the server
+ * only sends the list again if it changed. When it does, it's transferred
+ * compressed and decompressed while it's written.
+ */
+public class CatalogClient {
+
+    private static final String TAG = "CatalogClient";
+
+    private static final int TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    public interface Callback {
+        /**
+         * The list changed and was written to the destination
+         *
+         * @param etag the ETag of the new list, null if the server didn't send one
+         * @param lastModified the Last-Modified date of the new list, null if the
+         *                     server didn't send one
+         */
+        void onSuccess(String etag, String lastModified);
+
+        /**
+         * The list we already have is still current, nothing was written
+         */
+        void onNotModified();
+
+        void onFailure();
+    }
+
+    private final String mUrl;
+    private final File mDestination;
+    private final Callback mCallback;
+    private String mETag;
+    private String mLastModified;
+
+    public CatalogClient(String url, File destination, Callback callback) {
+        mUrl = url;
+        mDestination = destination;
+        mCallback = callback;
+    }
+
+    /**
+     * Only get the list if it changed since the copy with the given validators was
+     * downloaded, either can be null
+     */
+    public CatalogClient setValidators(String etag, String lastModified) {
+        mETag = etag;
+        mLastModified = lastModified;
+        return this;
+    }
+
+    public void start() {
+        new Thread(() -> {
+            try {
+                fetch();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not fetch " + mUrl, e);
+                //noinspection ResultOfMethodCallIgnored
+                mDestination.delete();
+                mCallback.onFailure();
+            }
+        }).start();
+    }
+
+    private void fetch() throws IOException {
+        HttpURLConnection connection = HttpTransport.open(new URL(mUrl));
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        // Not every HTTP stack asks for it on its own, and those that do decompress
+        // the body behind our back unless we ask for it ourselves
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (mETag != null) {
+            connection.setRequestProperty("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+        try {
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(TAG, "List not modified");
+                HttpTransport.release(connection);
+                mCallback.onNotModified();
+                return;
+            } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                String retryAfter = connection.getHeaderField("Retry-After");
+                HttpTransport.release(connection);
+                throw new HttpStatusException(responseCode, retryAfter);
+            }
+
+            try (InputStream in = getDecodedStream(connection);
+                 OutputStream out = new FileOutputStream(mDestination)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            }
+            Log.d(TAG, "List downloaded, " + connection.getContentLength() +
+                    " bytes transferred for " + mDestination.length());
+            mCallback.onSuccess(connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"));
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static InputStream getDecodedStream(HttpURLConnection connection)
+            throws IOException {
+        InputStream inputStream = connection.getInputStream();
+        String encoding = connection.getContentEncoding();
+        if (encoding == null || encoding.equalsIgnoreCase("identity")) {
+            return inputStream;
+        } else if (encoding.equalsIgnoreCase("gzip")) {
+            return new GZIPInputStream(inputStream, BUFFER_SIZE);
+        }
+        inputStream.close();
+        throw new IOException("Unsupported content encoding " + encoding);
+    }
+}
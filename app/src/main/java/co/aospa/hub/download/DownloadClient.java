@@ -26,10 +26,21 @@ public interface DownloadClient {
         void onSuccess();
 
         void onFailure(boolean cancelled);
+
+        /**
+         * The download stopped receiving data, or got too slow, and is reconnecting
+         * where it stopped, from another mirror if there's one. Nothing needs to be
+         * done, the download fails as usual if it can't go on.
+         */
+        void onStall();
     }
 
     interface ProgressListener {
-        void update(long bytesRead, long contentLength, long speed, long eta);
+        /**
+         * @param speedLimit the throughput the download is limited to in bytes per
+         *                   second, 0 if it isn't limited
+         */
+        void update(long bytesRead, long contentLength, long speed, long eta, long speedLimit);
     }
 
     interface Headers {
@@ -54,12 +65,27 @@ public interface DownloadClient {
      */
     void cancel();
 
+    /**
+     * Get the SHA-256 digest of the downloaded file, computed while the file was
+     * being written. It's only available once DownloadCallback.onSuccess() is called
+     * and only if the client was built with setComputeSha256(true).
+     *
+     * @return the digest as a lowercase hex string, or null if it wasn't computed
+     */
+    String getSha256();
+
     final class Builder {
         private String mUrl;
         private File mDestination;
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private int mSegments = 1;
+        private boolean mComputeSha256;
+        private BandwidthGovernor mBandwidthGovernor;
+        private RetryPolicy mRetryPolicy;
+        private long mStallTimeoutMs = 30000;
+        private long mMinSpeed;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -70,7 +96,8 @@ public interface DownloadClient {
                 throw new IllegalStateException("No download callback defined");
             }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+                    mUseDuplicateLinks, mSegments, mComputeSha256, mBandwidthGovernor,
+                    mRetryPolicy, mStallTimeoutMs, mMinSpeed);
         }
 
         public Builder setUrl(String url) {
@@ -97,5 +124,57 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Download the file with up to the given number of parallel range requests.
+         * Files that are too small or servers that don't support range requests
+         * fall back to a single connection.
+         */
+        public Builder setSegments(int segments) {
+            mSegments = segments;
+            return this;
+        }
+
+        public Builder setComputeSha256(boolean computeSha256) {
+            mComputeSha256 = computeSha256;
+            return this;
+        }
+
+        /**
+         * Limit the throughput of the download, the governor can be shared with
+         * other downloads to limit their total throughput
+         */
+        public Builder setBandwidthGovernor(BandwidthGovernor bandwidthGovernor) {
+            mBandwidthGovernor = bandwidthGovernor;
+            return this;
+        }
+
+        /**
+         * Retry failed downloads according to the given policy, continuing from what
+         * was already downloaded. Without a policy the first error fails the download.
+         */
+        public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+            mRetryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Reconnect when no data comes in for the given time, 30 seconds by default
+         */
+        public Builder setStallTimeout(long stallTimeoutMs) {
+            mStallTimeoutMs = stallTimeoutMs;
+            return this;
+        }
+
+        /**
+         * Reconnect when the download is slower than the given speed for as long as
+         * the stall timeout, unless it's limited below that by the bandwidth governor
+         *
+         * @param minSpeed the speed in bytes per second, 0 to accept any speed
+         */
+        public Builder setMinSpeed(long minSpeed) {
+            mMinSpeed = minSpeed;
+            return this;
+        }
     }
 }
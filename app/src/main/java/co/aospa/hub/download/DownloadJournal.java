@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar file that records which fixed-size chunks of a download are safely on disk.
+ * A chunk is only recorded once its data was flushed with fdatasync, so after a crash
+ * the download can be resumed from the chunks listed here instead of trusting the
+ * length of a possibly torn file.
+ *
+ * The journal starts with a header holding the length of the file and the validator
+ * (ETag or Last-Modified) of the server-side file, followed by one record per chunk.
+ */
+public class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x50484a31;
+    private static final int RECORD_SALT = 0x5a17c0de;
+
+    private final File mDestination;
+    private final File mFile;
+    private final long mLength;
+    private final String mValidator;
+    private final BitSet mChunks = new BitSet();
+    private final int[] mChecksums;
+    private final List<Integer> mPending = new ArrayList<>();
+
+    private FileOutputStream mOutputStream;
+    private DataOutputStream mDataOutputStream;
+
+    private DownloadJournal(File destination, long length, String validator) {
+        mDestination = destination;
+        mFile = getJournalFile(destination);
+        mLength = length;
+        mValidator = validator;
+        mChecksums = new int[getChunkCount(length)];
+    }
+
+    public static File getJournalFile(File destination) {
+        return new File(destination.getAbsolutePath() + SUFFIX);
+    }
+
+    private static int getChunkCount(long length) {
+        return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Create a new journal for the given download, replacing any existing one
+     */
+    static DownloadJournal create(File destination, long length, String validator)
+            throws IOException {
+        DownloadJournal journal = new DownloadJournal(destination, length, validator);
+        journal.mOutputStream = new FileOutputStream(journal.mFile, false);
+        journal.mDataOutputStream = new DataOutputStream(journal.mOutputStream);
+        journal.mDataOutputStream.writeInt(MAGIC);
+        journal.mDataOutputStream.writeLong(length);
+        journal.mDataOutputStream.writeUTF(validator != null ? validator : "");
+        journal.sync();
+        return journal;
+    }
+
+    /**
+     * Load the journal of the given download and validate the last chunk of every
+     * recorded run against the data on disk.
+     *
+     * @return the journal, or null if there's no usable journal
+     */
+    static DownloadJournal load(File destination) {
+        File file = getJournalFile(destination);
+        if (!file.exists() || !destination.exists()) {
+            return null;
+        }
+        DownloadJournal journal;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                Log.e(TAG, "Invalid journal " + file);
+                return null;
+            }
+            long length = in.readLong();
+            String validator = in.readUTF();
+            journal = new DownloadJournal(destination, length,
+                    validator.isEmpty() ? null : validator);
+            for (;;) {
+                int index;
+                int checksum;
+                try {
+                    index = in.readInt();
+                    checksum = in.readInt();
+                    if (in.readInt() != (index ^ checksum ^ RECORD_SALT)) {
+                        Log.e(TAG, "Ignoring corrupted journal tail");
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // A torn record at the end is expected after a crash
+                    break;
+                }
+                if (index < 0 || index >= journal.mChecksums.length) {
+                    Log.e(TAG, "Ignoring invalid chunk " + index);
+                    break;
+                }
+                journal.mChunks.set(index);
+                journal.mChecksums[index] = checksum;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read journal " + file, e);
+            return null;
+        }
+
+        try {
+            journal.validateRuns();
+            // Rewrite the journal so that dropped chunks and torn records are gone
+            journal.rewrite();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not validate journal " + file, e);
+            return null;
+        }
+        return journal;
+    }
+
+    public static void delete(File destination) {
+        File file = getJournalFile(destination);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Could not delete " + file);
+        }
+    }
+
+    /**
+     * Get the number of bytes of the given download that are known to be on disk
+     */
+    public static long getDownloadedBytes(File destination) {
+        File file = getJournalFile(destination);
+        if (!file.exists()) {
+            // Tracked downloads are preallocated and keep their journal until they're
+            // verified, a file without one was written from the start
+            return destination.length();
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return 0;
+            }
+            long length = in.readLong();
+            in.readUTF();
+            BitSet chunks = new BitSet();
+            int chunkCount = getChunkCount(length);
+            try {
+                for (;;) {
+                    int index = in.readInt();
+                    int checksum = in.readInt();
+                    if (in.readInt() != (index ^ checksum ^ RECORD_SALT) ||
+                            index < 0 || index >= chunkCount) {
+                        break;
+                    }
+                    chunks.set(index);
+                }
+            } catch (EOFException e) {
+                // End of the journal
+            }
+            long bytes = (long) chunks.cardinality() * CHUNK_SIZE;
+            if (chunkCount > 0 && chunks.get(chunkCount - 1)) {
+                // The last chunk is usually shorter
+                bytes -= (long) chunkCount * CHUNK_SIZE - length;
+            }
+            return bytes;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    String getValidator() {
+        return mValidator;
+    }
+
+    synchronized boolean isComplete() {
+        return mChunks.cardinality() == mChecksums.length;
+    }
+
+    /**
+     * Get the ranges of the file that still need to be downloaded
+     *
+     * @return a list of {start, end} pairs, end excluded
+     */
+    synchronized List<long[]> getMissingRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        int index = mChunks.nextClearBit(0);
+        while (index < mChecksums.length) {
+            int next = mChunks.nextSetBit(index);
+            if (next < 0) {
+                next = mChecksums.length;
+            }
+            ranges.add(new long[] { getChunkStart(index), getChunkEnd(next - 1) });
+            index = mChunks.nextClearBit(next);
+        }
+        return ranges;
+    }
+
+    private long getChunkStart(int index) {
+        return (long) index * CHUNK_SIZE;
+    }
+
+    private long getChunkEnd(int index) {
+        return Math.min((long) (index + 1) * CHUNK_SIZE, mLength);
+    }
+
+    private synchronized void chunkWritten(int index, int checksum) {
+        mChecksums[index] = checksum;
+        mPending.add(index);
+    }
+
+    /**
+     * Flush the data of the download and record the chunks completed since the
+     * previous checkpoint
+     */
+    void checkpoint() throws IOException {
+        List<Integer> pending;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(mPending);
+            mPending.clear();
+        }
+        // Only what was written before this point is covered by the flush
+        try (RandomAccessFile data = new RandomAccessFile(mDestination, "rw")) {
+            Os.fdatasync(data.getFD());
+        } catch (ErrnoException e) {
+            throw new IOException("Could not sync " + mDestination, e);
+        }
+        synchronized (this) {
+            for (int index : pending) {
+                writeRecord(index, mChecksums[index]);
+                mChunks.set(index);
+            }
+            sync();
+        }
+    }
+
+    void close() {
+        try {
+            if (mDataOutputStream != null) {
+                mDataOutputStream.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close journal", e);
+        }
+    }
+
+    private void writeRecord(int index, int checksum) throws IOException {
+        mDataOutputStream.writeInt(index);
+        mDataOutputStream.writeInt(checksum);
+        mDataOutputStream.writeInt(index ^ checksum ^ RECORD_SALT);
+    }
+
+    private void sync() throws IOException {
+        mDataOutputStream.flush();
+        try {
+            Os.fdatasync(mOutputStream.getFD());
+        } catch (ErrnoException e) {
+            throw new IOException("Could not sync " + mFile, e);
+        }
+    }
+
+    private void rewrite() throws IOException {
+        File tmp = new File(mFile.getAbsolutePath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             DataOutputStream dataOut = new DataOutputStream(out)) {
+            dataOut.writeInt(MAGIC);
+            dataOut.writeLong(mLength);
+            dataOut.writeUTF(mValidator != null ? mValidator : "");
+            for (int i = mChunks.nextSetBit(0); i >= 0; i = mChunks.nextSetBit(i + 1)) {
+                dataOut.writeInt(i);
+                dataOut.writeInt(mChecksums[i]);
+                dataOut.writeInt(i ^ mChecksums[i] ^ RECORD_SALT);
+            }
+            dataOut.flush();
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+        mOutputStream = new FileOutputStream(mFile, true);
+        mDataOutputStream = new DataOutputStream(mOutputStream);
+    }
+
+    /**
+     * Check the last chunk of every run of recorded chunks, which are the ones that
+     * were being written when the download stopped, dropping the chunks that don't
+     * match until a good one is found.
+     */
+    private void validateRuns() throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile data = new RandomAccessFile(mDestination, "r")) {
+            int index = mChunks.nextSetBit(0);
+            while (index >= 0) {
+                int runEnd = mChunks.nextClearBit(index) - 1;
+                int next = mChunks.nextSetBit(runEnd + 1);
+                for (int i = runEnd; i >= index; i--) {
+                    long start = getChunkStart(i);
+                    long end = getChunkEnd(i);
+                    crc.reset();
+                    if (end <= data.length()) {
+                        data.seek(start);
+                        for (long position = start; position < end; ) {
+                            int count = (int) Math.min(buffer.length, end - position);
+                            data.readFully(buffer, 0, count);
+                            crc.update(buffer, 0, count);
+                            position += count;
+                        }
+                        if ((int) crc.getValue() == mChecksums[i]) {
+                            break;
+                        }
+                    }
+                    Log.e(TAG, "Chunk " + i + " of " + mDestination + " is corrupted");
+                    mChunks.clear(i);
+                }
+                index = next;
+            }
+        }
+    }
+
+    /**
+     * Checksums the data written sequentially from a chunk boundary and records the
+     * chunks as they are completed. The data must be written to the file before
+     * it's passed to update().
+     */
+    class ChunkWriter {
+        private final CRC32 mCrc = new CRC32();
+        private long mPosition;
+
+        ChunkWriter(long start) {
+            if (start % CHUNK_SIZE != 0) {
+                throw new IllegalArgumentException("Start is not aligned to a chunk");
+            }
+            mPosition = start;
+        }
+
+        void update(byte[] b, int off, int len) {
+            while (len > 0) {
+                int index = (int) (mPosition / CHUNK_SIZE);
+                long chunkEnd = getChunkEnd(index);
+                int count = (int) Math.min(len, chunkEnd - mPosition);
+                mCrc.update(b, off, count);
+                mPosition += count;
+                off += count;
+                len -= count;
+                if (mPosition == chunkEnd) {
+                    chunkWritten(index, (int) mCrc.getValue());
+                    mCrc.reset();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.IOException;
+
+/**
+ * The server replied with a status code we can't download from
+ */
+class HttpStatusException extends IOException {
+
+    private final int mStatusCode;
+    private final long mRetryAfterMs;
+
+    /**
+     * @param retryAfter the value of the Retry-After header, can be null
+     */
+    HttpStatusException(int statusCode, String retryAfter) {
+        super("Server replied with " + statusCode);
+        mStatusCode = statusCode;
+        mRetryAfterMs = parseRetryAfter(retryAfter);
+    }
+
+    int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return how long the server asked us to wait before trying again, -1 if it didn't
+     */
+    long getRetryAfterMs() {
+        return mRetryAfterMs;
+    }
+
+    private static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            // The HTTP date form isn't worth supporting here
+            return Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * Process-wide settings for the HTTP connections we open. The platform keeps idle
+ * connections in a pool shared by the whole process and resumes TLS sessions from
+ * a shared cache, this makes sure there's room for all our connections and that
+ * connections are given back to the pool rather than closed whenever possible.
+ */
+public final class HttpTransport {
+
+    private static final String TAG = "HttpTransport";
+
+    // Enough for all the segments of a download, the mirror probes and the catalog
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+    private static final int TLS_SESSION_CACHE_SIZE = 32;
+    private static final int TLS_SESSION_TIMEOUT_S = 60 * 60;
+    // Larger bodies are cheaper to drop with their connection than to read
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+    private static final int MAX_PRECONNECT_REDIRECTS = 3;
+    private static final long PRECONNECT_INTERVAL_MS = 60 * 1000;
+    private static final int PRECONNECT_TIMEOUT_MS = 5000;
+
+    private static final Map<String, Long> sPreconnected = new HashMap<>();
+    private static boolean sInitialized;
+
+    private HttpTransport() {
+    }
+
+    private static synchronized void init() {
+        if (sInitialized) {
+            return;
+        }
+        sInitialized = true;
+        // Read once by the connection pool, before the first connection is opened
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_DURATION_MS));
+        try {
+            SSLSessionContext sessions = SSLContext.getDefault().getClientSessionContext();
+            sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(TLS_SESSION_TIMEOUT_S);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "Could not configure the TLS session cache", e);
+        }
+    }
+
+    /**
+     * Open a connection to the given url, reusing an idle connection to the same
+     * host if there's one
+     */
+    static HttpURLConnection open(URL url) throws IOException {
+        init();
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    /**
+     * Give the connection back to the pool if its response is small enough to be
+     * skipped, close it otherwise. The response can't be read afterwards.
+     */
+    static void release(HttpURLConnection connection) {
+        try {
+            InputStream inputStream = connection.getResponseCode() >= 400 ?
+                    connection.getErrorStream() : connection.getInputStream();
+            if (inputStream != null) {
+                try (InputStream in = inputStream) {
+                    byte[] b = new byte[8192];
+                    int drained = 0;
+                    int count;
+                    while ((count = in.read(b)) != -1) {
+                        drained += count;
+                        if (drained > MAX_DRAIN_BYTES) {
+                            connection.disconnect();
+                            return;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Set up a connection to the host of the given url in the background, so that
+     * a download starting soon after doesn't have to wait for DNS and the TLS
+     * handshake. Redirects are followed so that the host actually serving the
+     * file is also ready.
+     */
+    public static void preconnect(String url) {
+        final URL target;
+        try {
+            target = new URL(url);
+        } catch (IOException e) {
+            Log.e(TAG, "Not preconnecting to invalid url " + url, e);
+            return;
+        }
+        synchronized (sPreconnected) {
+            final long now = SystemClock.elapsedRealtime();
+            Long last = sPreconnected.get(target.getHost());
+            if (last != null && now - last < PRECONNECT_INTERVAL_MS) {
+                return;
+            }
+            sPreconnected.put(target.getHost(), now);
+        }
+        new Thread(() -> {
+            URL next = target;
+            for (int i = 0; next != null && i <= MAX_PRECONNECT_REDIRECTS; i++) {
+                HttpURLConnection connection = null;
+                try {
+                    connection = open(next);
+                    connection.setRequestMethod("HEAD");
+                    connection.setInstanceFollowRedirects(false);
+                    connection.setConnectTimeout(PRECONNECT_TIMEOUT_MS);
+                    connection.setReadTimeout(PRECONNECT_TIMEOUT_MS);
+                    int responseCode = connection.getResponseCode();
+                    String location = connection.getHeaderField("Location");
+                    release(connection);
+                    next = responseCode / 100 == 3 && location != null ?
+                            new URL(next, location) : null;
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not preconnect to " + next, e);
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                    next = null;
+                }
+            }
+        }).start();
+    }
+}
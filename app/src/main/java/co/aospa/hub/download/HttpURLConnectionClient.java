@@ -16,19 +16,30 @@
 package co.aospa.hub.download;
 
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
+import co.aospa.hub.misc.ProgressReporter;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Comparator;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,14 +47,38 @@ public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    // Splitting small files costs more in connection setup than it gains
+    private static final long MIN_SEGMENT_SIZE = 32 * 1024 * 1024;
+    private static final long SEGMENT_PROGRESS_INTERVAL_MS = 500;
+    static final int MIN_BUFFER_SIZE = 16 * 1024;
+    static final int MAX_BUFFER_SIZE = 256 * 1024;
+    private static final long CHECKPOINT_INTERVAL_MS = 5000;
+    // Bytes hashed back from disk between two progress updates
+    private static final long HASH_BYTES_PER_INTERVAL = 64 * 1024 * 1024;
+    // Move to another mirror when it measured this many times faster than the
+    // current one for a while
+    private static final long MIRROR_SWITCH_RATIO = 3;
+    private static final long MIRROR_SWITCH_DELAY_MS = 10000;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    // A last resort, stalled segments are normally reconnected well before this
+    private static final int READ_TIMEOUT_MS = 2 * 60 * 1000;
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final int mSegments;
+    private final boolean mComputeSha256;
+    private final BandwidthGovernor mBandwidthGovernor;
+    private final RetryPolicy mRetryPolicy;
+    private final long mStallTimeoutMs;
+    private final long mMinSpeed;
+    private final URL mUrl;
 
     private DownloadThread mDownloadThread;
+    private volatile String mSha256;
 
     public class Headers implements DownloadClient.Headers {
         @Override
@@ -56,12 +91,25 @@ public class HttpURLConnectionClient implements DownloadClient {
     HttpURLConnectionClient(String url, File destination,
             DownloadClient.ProgressListener progressListener,
             DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
-        mClient = (HttpURLConnection) new URL(url).openConnection();
+            boolean useDuplicateLinks,
+            int segments,
+            boolean computeSha256,
+            BandwidthGovernor bandwidthGovernor,
+            RetryPolicy retryPolicy,
+            long stallTimeoutMs,
+            long minSpeed) throws IOException {
+        mUrl = new URL(url);
+        mClient = HttpTransport.open(mUrl);
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mSegments = segments;
+        mComputeSha256 = computeSha256;
+        mBandwidthGovernor = bandwidthGovernor;
+        mRetryPolicy = retryPolicy;
+        mStallTimeoutMs = stallTimeoutMs;
+        mMinSpeed = minSpeed;
     }
 
     @Override
@@ -70,6 +118,11 @@ public class HttpURLConnectionClient implements DownloadClient {
             Log.e(TAG, "Already downloading");
             return;
         }
+        if (mSegments > 1) {
+            // Request the whole file as a range, a 206 reply tells us that
+            // the server can also serve the other segments
+            mClient.setRequestProperty("Range", "bytes=0-");
+        }
         downloadFileInternalCommon(false);
     }
 
@@ -92,13 +145,16 @@ public class HttpURLConnectionClient implements DownloadClient {
         mDownloadThread = null;
     }
 
+    @Override
+    public String getSha256() {
+        return mSha256;
+    }
+
     private void downloadFileResumeInternal() {
         if (!mDestination.exists()) {
             mCallback.onFailure(false);
             return;
         }
-        long offset = mDestination.length();
-        mClient.setRequestProperty("Range", "bytes=" + offset + "-");
         downloadFileInternalCommon(true);
     }
 
@@ -112,6 +168,11 @@ public class HttpURLConnectionClient implements DownloadClient {
         mDownloadThread.start();
     }
 
+    private static void setTimeouts(HttpURLConnection connection) {
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+    }
+
     private static boolean isSuccessCode(int statusCode) {
         return (statusCode / 100) == 2;
     }
@@ -124,84 +185,851 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
+    /**
+     * Get the complete length of the resource from a Content-Range header
+     *
+     * @param contentRange the value of the header, e.g. "bytes 0-499/1234"
+     * @return the complete length, or -1 if unknown
+     */
+    private static long parseContentRangeLength(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the first byte of the range served according to a Content-Range header
+     *
+     * @param contentRange the value of the header, e.g. "bytes 0-499/1234"
+     * @return the first byte, or -1 if unknown
+     */
+    private static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        Matcher matcher = Pattern.compile("(?i)bytes\\s+([0-9]+)-.*")
+                .matcher(contentRange.trim());
+        if (!matcher.matches()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    static class SegmentThread extends Thread {
+
+        private final FileChannel mChannel;
+        private final DownloadJournal.ChunkWriter mChunkWriter;
+        private final MessageDigest mDigest;
+        private final BandwidthGovernor mGovernor;
+        private final long mStart;
+        private final long mEnd;
+        private final CountDownLatch mDoneSignal;
+        private final String mValidator;
+
+        private volatile URL mUrl;
+        private ByteBuffer mBuffer;
+        private int mWindow = MIN_BUFFER_SIZE;
+
+        private volatile HttpURLConnection mConnection;
+        private volatile URL mNextUrl;
+        private volatile boolean mStopped;
+        private volatile boolean mReachedEnd;
+        private volatile long mBytesRead;
+        private volatile IOException mError;
+        // When data last came in, or when the segment last had to wait for bandwidth
+        private volatile long mLastActivity = SystemClock.elapsedRealtime();
+
+        /**
+         * @param connection an already connected client serving the range, or null to
+         *                   open a new connection to url
+         * @param validator the ETag or Last-Modified value the server must still match,
+         *                  can be null
+         * @param journal the journal tracking the download, can be null
+         * @param digest the digest to update with the data of the segment, can be null
+         * @param governor the governor limiting the throughput, can be null
+         * @param start first byte of the segment
+         * @param end first byte after the segment, or -1 to read until the end
+         */
+        SegmentThread(HttpURLConnection connection, URL url, String validator,
+                FileChannel channel, DownloadJournal journal, MessageDigest digest,
+                BandwidthGovernor governor, long start, long end, CountDownLatch doneSignal) {
+            mConnection = connection;
+            mUrl = url;
+            mValidator = validator;
+            mChannel = channel;
+            mChunkWriter = journal != null ? journal.new ChunkWriter(start) : null;
+            mDigest = digest;
+            mGovernor = governor;
+            mStart = start;
+            mEnd = end;
+            mDoneSignal = doneSignal;
+        }
+
+        private boolean isComplete() {
+            return mEnd < 0 ? mReachedEnd : mStart + mBytesRead == mEnd;
+        }
+
+        private void stopSegment() {
+            mStopped = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                // Unblock a pending read
+                connection.disconnect();
+            }
+        }
+
+        /**
+         * Continue the segment from another mirror, or from the same one with a new
+         * connection if url is the current one
+         */
+        private void switchUrl(URL url) {
+            mLastActivity = SystemClock.elapsedRealtime();
+            mNextUrl = url;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                // Unblock a pending read
+                connection.disconnect();
+            }
+        }
+
+        private void connect() throws IOException {
+            final long position = mStart + mBytesRead;
+            HttpURLConnection connection = HttpTransport.open(mUrl);
+            setTimeouts(connection);
+            connection.setRequestProperty("Range", "bytes=" + position + "-" +
+                    (mEnd < 0 ? "" : String.valueOf(mEnd - 1)));
+            if (mValidator != null) {
+                // Get a 200 instead of mixing parts of different files
+                connection.setRequestProperty("If-Range", mValidator);
+            }
+            mConnection = connection;
+            connection.connect();
+            int responseCode = connection.getResponseCode();
+            if (mValidator != null && responseCode == 200) {
+                throw new IOException(mUrl + " doesn't serve the same file anymore");
+            }
+            if (!isPartialContentCode(responseCode)) {
+                throw new IOException("Server replied with " + responseCode + " for segment");
+            }
+            long start = parseContentRangeStart(connection.getHeaderField("Content-Range"));
+            if (start != position) {
+                throw new IOException("Server sent the wrong range for segment");
+            }
+        }
+
+        /**
+         * Copy the reply to the file. The data is collected in a buffer that is written
+         * with a single call once the current window is full. The window grows when
+         * the connection fills it in one read and shrinks when it takes many reads,
+         * so fast connections make fewer system calls while slow ones still report
+         * their progress regularly.
+         */
+        void transfer() throws IOException {
+            if (mBuffer == null) {
+                // The channel writes direct buffers without copying them first and
+                // Android gives them a backing array we can read the reply into
+                mBuffer = ByteBuffer.allocateDirect(MAX_BUFFER_SIZE);
+                if (!mBuffer.hasArray()) {
+                    mBuffer = ByteBuffer.allocate(MAX_BUFFER_SIZE);
+                }
+            }
+            final byte[] b = mBuffer.array();
+            final int offset = mBuffer.arrayOffset();
+            try (InputStream inputStream = mConnection.getInputStream()) {
+                long position = mStart + mBytesRead;
+                int fill = 0;
+                int reads = 0;
+                while (!mStopped && mNextUrl == null && (mEnd < 0 || position < mEnd)) {
+                    int len = mWindow - fill;
+                    if (mEnd >= 0) {
+                        len = (int) Math.min(len, mEnd - position - fill);
+                    }
+                    int count = inputStream.read(b, offset + fill, len);
+                    mLastActivity = SystemClock.elapsedRealtime();
+                    if (count < 0) {
+                        position = flush(fill, position);
+                        fill = 0;
+                        if (mEnd < 0) {
+                            mReachedEnd = true;
+                            break;
+                        }
+                        throw new IOException("Unexpected end of segment");
+                    }
+                    fill += count;
+                    reads++;
+                    if (mGovernor != null) {
+                        waitForBandwidth(count);
+                    }
+                    if (fill == mWindow || (mEnd >= 0 && position + fill == mEnd)) {
+                        if (reads == 1) {
+                            mWindow = Math.min(mWindow * 2, MAX_BUFFER_SIZE);
+                        } else if (reads > 8) {
+                            mWindow = Math.max(mWindow / 2, MIN_BUFFER_SIZE);
+                        }
+                        position = flush(fill, position);
+                        fill = 0;
+                        reads = 0;
+                    }
+                }
+                // Keep what was read before stopping
+                flush(fill, position);
+            }
+        }
+
+        /**
+         * @return the size of the window the reply is currently written in
+         */
+        int getWindow() {
+            return mWindow;
+        }
+
+        private void waitForBandwidth(int bytes) throws IOException {
+            long delay = mGovernor.consume(bytes);
+            final long end = SystemClock.elapsedRealtime() + delay;
+            while (delay > 0 && !mStopped && mNextUrl == null) {
+                try {
+                    // Short naps so that we stop quickly
+                    Thread.sleep(Math.min(delay, 100));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+                delay = end - SystemClock.elapsedRealtime();
+            }
+            // Being throttled isn't being stalled
+            mLastActivity = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Write the first count bytes of the buffer to the file at the given position
+         *
+         * @return the position after the data written
+         */
+        private long flush(int count, long position) throws IOException {
+            if (count == 0) {
+                return position;
+            }
+            mBuffer.clear();
+            mBuffer.limit(count);
+            while (mBuffer.hasRemaining()) {
+                position += mChannel.write(mBuffer, position);
+            }
+            final byte[] b = mBuffer.array();
+            final int offset = mBuffer.arrayOffset();
+            if (mChunkWriter != null) {
+                mChunkWriter.update(b, offset, count);
+            }
+            if (mDigest != null) {
+                mDigest.update(b, offset, count);
+            }
+            mBytesRead = position - mStart;
+            return position;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    try {
+                        if (mConnection == null) {
+                            connect();
+                        }
+                        transfer();
+                    } catch (IOException e) {
+                        if (mStopped || mNextUrl == null) {
+                            throw e;
+                        }
+                    }
+                    URL nextUrl = mNextUrl;
+                    if (nextUrl == null || mStopped || isComplete()) {
+                        break;
+                    }
+                    Log.d(TAG, "Continuing segment from " + nextUrl);
+                    if (mConnection != null) {
+                        mConnection.disconnect();
+                        mConnection = null;
+                    }
+                    mNextUrl = null;
+                    // Keep the validator, a mirror serving another file replies with
+                    // a 200 and fails the segment instead of mixing the two files
+                    mUrl = nextUrl;
+                }
+            } catch (IOException e) {
+                if (!mStopped) {
+                    mError = e;
+                }
+            } finally {
+                HttpURLConnection connection = mConnection;
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                mDoneSignal.countDown();
+            }
+        }
+    }
+
     private class DownloadThread extends Thread {
 
         private long mTotalBytes = 0;
         private long mTotalBytesRead = 0;
 
-        private long mCurSampleBytes = 0;
-        private long mLastMillis = 0;
-        private long mSpeed = -1;
-        private long mEta = -1;
+        private final ProgressReporter mReporter = new ProgressReporter(
+                SEGMENT_PROGRESS_INTERVAL_MS, (bytes, total, progress, speed, eta) -> {
+                    if (mProgressListener != null) {
+                        mProgressListener.update(bytes, total, speed, eta, getSpeedLimit());
+                    }
+                });
 
         private final boolean mResume;
 
+        private DownloadJournal mJournal;
+        // Where a download without a journal continues from
+        private long mResumeOffset;
+        // The {start, end} ranges to download, end is -1 if unknown
+        private List<long[]> mPlan;
+
+        private MessageDigest mDigest;
+        // The digest covers the file up to here
+        private long mHashedBytes;
+        // The segment updating the digest while downloading, if any
+        private SegmentThread mHashingSegment;
+        private byte[] mHashBuffer;
+
+        // The mirrors of the file, null if the server didn't announce any
+        private MirrorSelector mMirrors;
+        private MirrorSelector.Mirror mMirror;
+        private boolean mRangesSupported;
+        private long mSlowSince = -1;
+        private long mBelowMinSpeedSince = -1;
+
+        private boolean mResponded;
+
         private DownloadThread(boolean resume) {
             mResume = resume;
+            mSha256 = null;
+            if (mComputeSha256) {
+                try {
+                    mDigest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    Log.e(TAG, "SHA-256 is not available", e);
+                }
+            }
         }
 
-        private void calculateSpeed(boolean justResumed) {
-            final long millis = SystemClock.elapsedRealtime();
+        private void reportProgress(boolean justResumed) {
             if (justResumed) {
-                // If we don't start over with these after resumption, we get huge numbers for
-                // ETA since the delta will grow, resulting in a very low speed
-                mLastMillis = millis;
-                mSpeed = -1; // we don't want the moving avg with values from who knows when
-
-                // need to do this as well, otherwise the second time we call calculateSpeed(),
-                // the difference (mTotalBytesRead - mCurSampleBytes) will be larger than expected,
-                // resulting in a higher speed calculation
-                mCurSampleBytes = mTotalBytesRead;
+                // Don't let the time spent paused or on another mirror lower the speed
+                mReporter.reset(mTotalBytesRead);
+            }
+            mReporter.setTotal(mTotalBytes);
+            mReporter.report(mTotalBytesRead);
+        }
+
+        private long getSpeedLimit() {
+            return mBandwidthGovernor != null ? mBandwidthGovernor.getRate() : 0;
+        }
+
+        private long getSegmentsBytesRead(SegmentThread[] segments) {
+            long bytesRead = 0;
+            for (SegmentThread segment : segments) {
+                bytesRead += segment.mBytesRead;
+            }
+            return bytesRead;
+        }
+
+        /**
+         * Get the length of the data at the start of the file that is on disk without
+         * holes. Everything outside of the plan was already downloaded and the plan
+         * is sorted, so the data ends where the first incomplete segment stopped.
+         */
+        private long getContiguousBytes(SegmentThread[] segments) {
+            for (SegmentThread segment : segments) {
+                if (!segment.isComplete()) {
+                    return segment.mStart + segment.mBytesRead;
+                }
+            }
+            SegmentThread last = segments[segments.length - 1];
+            return Math.max(mTotalBytes, last.mStart + last.mBytesRead);
+        }
+
+        /**
+         * Update the digest with the data written to disk since the previous call.
+         * The segment that starts where the digest ends hashes its data as it's
+         * downloaded, the other ones are read back once the data before them is
+         * complete.
+         *
+         * @param maxBytes the maximum number of bytes to read back from disk
+         */
+        private void updateDigest(RandomAccessFile file, SegmentThread[] segments,
+                long maxBytes) {
+            if (mDigest == null) {
                 return;
             }
-            final long delta = millis - mLastMillis;
-            if (delta > 500) {
-                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
-                if (mSpeed == -1) {
-                    mSpeed = curSpeed;
-                } else {
-                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+            if (mHashingSegment != null) {
+                if (!mHashingSegment.isComplete()) {
+                    // The segment owns the digest until it's done
+                    return;
                 }
+                mHashedBytes = mHashingSegment.mStart + mHashingSegment.mBytesRead;
+                mHashingSegment = null;
+            }
+            long end = getContiguousBytes(segments);
+            if (end - mHashedBytes > maxBytes) {
+                end = mHashedBytes + maxBytes;
+            }
+            if (mHashedBytes >= end) {
+                return;
+            }
+            if (mHashBuffer == null) {
+                mHashBuffer = new byte[64 * 1024];
+            }
+            try {
+                file.seek(mHashedBytes);
+                while (mHashedBytes < end && !isInterrupted()) {
+                    int count = (int) Math.min(mHashBuffer.length, end - mHashedBytes);
+                    file.readFully(mHashBuffer, 0, count);
+                    mDigest.update(mHashBuffer, 0, count);
+                    mHashedBytes += count;
+                }
+            } catch (IOException e) {
+                // The download itself can still complete, it just won't have a digest
+                Log.e(TAG, "Could not hash " + mDestination, e);
+                mDigest = null;
+            }
+        }
 
-                mLastMillis = millis;
-                mCurSampleBytes = mTotalBytesRead;
+        /**
+         * Move the segments to another mirror if the current one has been much slower
+         * than what the other mirrors measured for a while
+         *
+         * @return true if the segments were moved
+         */
+        private boolean switchMirrorIfSlow(SegmentThread[] segments) {
+            if (mMirrors == null || mMirror == null || !mRangesSupported || mReporter.getSpeed() < 0) {
+                return false;
+            }
+            int active = 0;
+            for (SegmentThread segment : segments) {
+                if (!segment.isComplete()) {
+                    active++;
+                }
+            }
+            if (active == 0) {
+                return false;
+            }
+            // The probes measured a single connection
+            final long speed = mReporter.getSpeed() / active;
+            final long now = SystemClock.elapsedRealtime();
+            MirrorSelector.Mirror fastest = mMirrors.getFastest(mMirror);
+            if (fastest == null || speed * MIRROR_SWITCH_RATIO >= fastest.getSpeed()) {
+                mSlowSince = -1;
+                return false;
             }
+            if (mSlowSince < 0) {
+                mSlowSince = now;
+                return false;
+            }
+            if (now - mSlowSince < MIRROR_SWITCH_DELAY_MS) {
+                return false;
+            }
+            Log.d(TAG, "Switching to " + fastest.getUrl() + ", " + mMirror.getUrl() +
+                    " only serves " + speed + " B/s");
+            // Don't come back unless the other mirror turns out to be even slower
+            mMirror.setSpeed(speed);
+            mMirror = fastest;
+            mSlowSince = -1;
+            for (SegmentThread segment : segments) {
+                if (!segment.isComplete()) {
+                    segment.switchUrl(fastest.getUrl());
+                }
+            }
+            return true;
         }
 
-        private void calculateEta() {
-            if (mSpeed > 0) {
-                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+        /**
+         * Reconnect the segments that stopped receiving data, or all of them when the
+         * download stays slower than the minimum speed. The segments move to the
+         * fastest other mirror if there's one.
+         *
+         * @return true if the segments moved to another mirror
+         * @throws IOException if the download stalled and can't continue where it
+         *                     stopped, the retry policy decides what happens then
+         */
+        private boolean handleStalls(SegmentThread[] segments) throws IOException {
+            final long now = SystemClock.elapsedRealtime();
+            List<SegmentThread> stalled = new ArrayList<>();
+            for (SegmentThread segment : segments) {
+                if (!segment.isComplete() && segment.mError == null &&
+                        now - segment.mLastActivity > mStallTimeoutMs) {
+                    stalled.add(segment);
+                }
             }
+
+            final long speed = mReporter.getSpeed();
+            final long speedLimit = getSpeedLimit();
+            // Don't blame the server for the limit we set ourselves
+            if (mMinSpeed > 0 && speed >= 0 && speed < mMinSpeed &&
+                    (speedLimit == 0 || speedLimit > mMinSpeed)) {
+                if (mBelowMinSpeedSince < 0) {
+                    mBelowMinSpeedSince = now;
+                } else if (now - mBelowMinSpeedSince > mStallTimeoutMs) {
+                    Log.d(TAG, "Only getting " + speed + " B/s, reconnecting");
+                    for (SegmentThread segment : segments) {
+                        if (!segment.isComplete() && !stalled.contains(segment)) {
+                            stalled.add(segment);
+                        }
+                    }
+                }
+            } else {
+                mBelowMinSpeedSince = -1;
+            }
+
+            if (stalled.isEmpty()) {
+                return false;
+            }
+            mBelowMinSpeedSince = -1;
+            mCallback.onStall();
+            if (!mRangesSupported) {
+                throw new IOException("The download stalled and can't continue where it " +
+                        "stopped");
+            }
+
+            MirrorSelector.Mirror fastest = mMirrors != null && mMirror != null ?
+                    mMirrors.getFastest(mMirror) : null;
+            if (fastest != null) {
+                Log.d(TAG, mMirror.getUrl() + " stalled, switching to " + fastest.getUrl());
+                mMirror.setFailed();
+                mMirror = fastest;
+                mSlowSince = -1;
+                for (SegmentThread segment : segments) {
+                    if (!segment.isComplete()) {
+                        segment.switchUrl(fastest.getUrl());
+                    }
+                }
+                return true;
+            }
+            for (SegmentThread segment : stalled) {
+                Log.d(TAG, "Segment at " + (segment.mStart + segment.mBytesRead) +
+                        " stalled, reconnecting");
+                segment.switchUrl(segment.mUrl);
+            }
+            return false;
+        }
+
+        private String getValidator() {
+            String etag = mClient.getHeaderField("ETag");
+            if (etag != null && !etag.startsWith("W/")) {
+                // Weak validators can't be used for range requests
+                return etag;
+            }
+            return mClient.getHeaderField("Last-Modified");
+        }
+
+        /**
+         * Adapt the ranges to download to the number of segments we can use: merge
+         * the ranges separated by the smallest gaps if there are too many of them,
+         * split the largest ones if there are too few.
+         */
+        private List<long[]> planRanges(List<long[]> ranges, boolean canSplit) {
+            List<long[]> plan = new ArrayList<>();
+            for (long[] range : ranges) {
+                plan.add(range.clone());
+            }
+            int maxRanges = canSplit ? Math.max(mSegments, 1) : 1;
+            while (plan.size() > maxRanges) {
+                int merge = 0;
+                long minGap = Long.MAX_VALUE;
+                for (int i = 0; i < plan.size() - 1; i++) {
+                    long gap = plan.get(i + 1)[0] - plan.get(i)[1];
+                    if (gap < minGap) {
+                        minGap = gap;
+                        merge = i;
+                    }
+                }
+                plan.get(merge)[1] = plan.remove(merge + 1)[1];
+            }
+            while (plan.size() < maxRanges) {
+                int largest = 0;
+                for (int i = 1; i < plan.size(); i++) {
+                    if (plan.get(i)[1] - plan.get(i)[0] >
+                            plan.get(largest)[1] - plan.get(largest)[0]) {
+                        largest = i;
+                    }
+                }
+                long[] range = plan.get(largest);
+                long half = (range[1] - range[0]) / 2;
+                // Keep the segments aligned to the chunks of the journal
+                half -= half % DownloadJournal.CHUNK_SIZE;
+                if (half < MIN_SEGMENT_SIZE) {
+                    break;
+                }
+                plan.add(largest + 1, new long[] { range[0] + half, range[1] });
+                range[1] = range[0] + half;
+            }
+            return plan;
+        }
+
+        /**
+         * Whether what is on disk can be resumed. Downloads tracked by a journal are
+         * preallocated to their full length, so the length of the file only tells
+         * how much was written for the ones too small to be tracked.
+         */
+        private boolean canResume() {
+            if (DownloadJournal.getJournalFile(mDestination).exists()) {
+                return true;
+            }
+            final long length = mDestination.length();
+            return length > 0 && length < DownloadJournal.CHUNK_SIZE;
+        }
+
+        /**
+         * Set up the request to resume the download. If there's a journal, only the
+         * chunks it doesn't list are requested and only if the file on the server
+         * is still the same one. Files too small to be tracked continue from their
+         * end, anything else is downloaded again.
+         *
+         * @return false if the download starts over
+         */
+        private boolean prepareResume() throws IOException {
+            final boolean tracked = DownloadJournal.getJournalFile(mDestination).exists();
+            mJournal = DownloadJournal.load(mDestination);
+            if (mJournal == null) {
+                if (tracked || !canResume()) {
+                    Log.e(TAG, "Can't tell what " + mDestination.getName() +
+                            " holds, starting over");
+                    DownloadJournal.delete(mDestination);
+                    try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                        file.setLength(0);
+                    }
+                    if (mSegments > 1) {
+                        mClient.setRequestProperty("Range", "bytes=0-");
+                    }
+                    return false;
+                }
+                mResumeOffset = mDestination.length();
+                mClient.setRequestProperty("Range", "bytes=" + mResumeOffset + "-");
+                return true;
+            }
+            mPlan = planRanges(mJournal.getMissingRanges(), true);
+            if (mPlan.isEmpty()) {
+                return true;
+            }
+            long[] first = mPlan.get(0);
+            mClient.setRequestProperty("Range", "bytes=" + first[0] + "-" + (first[1] - 1));
+            if (mJournal.getValidator() != null) {
+                mClient.setRequestProperty("If-Range", mJournal.getValidator());
+            }
+            return true;
+        }
+
+        private void preallocate(RandomAccessFile file, long length) throws IOException {
+            try {
+                Os.posix_fallocate(file.getFD(), 0, length);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) {
+                    throw new IOException("Not enough space for " + length + " bytes", e);
+                }
+                // Not supported by the file system, the file will grow as it's written
+                Log.d(TAG, "Could not preallocate " + mDestination, e);
+            }
+        }
+
+        /**
+         * Start the download from scratch using the response of the current client
+         */
+        private void prepareFreshDownload(int responseCode) throws IOException {
+            boolean partial = isPartialContentCode(responseCode);
+            mRangesSupported = partial;
+            if (partial) {
+                mTotalBytes = parseContentRangeLength(mClient.getHeaderField("Content-Range"));
+            } else {
+                mTotalBytes = mClient.getContentLengthLong();
+            }
+            mTotalBytesRead = 0;
+            if (mDigest != null) {
+                mDigest.reset();
+                mHashedBytes = 0;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                file.setLength(0);
+                // Files smaller than a chunk are cheaper to download again, and we can't
+                // keep a journal without knowing the size of the file
+                DownloadJournal.delete(mDestination);
+                if (mTotalBytes >= DownloadJournal.CHUNK_SIZE) {
+                    mJournal = DownloadJournal.create(mDestination, mTotalBytes,
+                            getValidator());
+                    // Reserve the whole file now so that we fail right away if it doesn't
+                    // fit and its blocks aren't scattered. The file then has its final
+                    // length, which is fine since the journal tracks what was written.
+                    preallocate(file, mTotalBytes);
+                }
+            }
+            List<long[]> ranges = new ArrayList<>();
+            ranges.add(new long[] { 0, mTotalBytes > 0 ? mTotalBytes : -1 });
+            mPlan = planRanges(ranges, partial);
+        }
+
+        /**
+         * Download the ranges of the plan in parallel. The current client must
+         * have been answered with the first range, it is used for the first segment.
+         *
+         * @return true if all the ranges were downloaded
+         */
+        private boolean downloadPlan() throws IOException {
+            final int count = mPlan.size();
+            final URL url = mClient.getURL();
+            final String validator = mJournal != null ? mJournal.getValidator() : null;
+            final CountDownLatch doneSignal = new CountDownLatch(count);
+            final SegmentThread[] segments = new SegmentThread[count];
+
+            long plannedBytes = 0;
+            for (long[] range : mPlan) {
+                if (range[1] >= 0) {
+                    plannedBytes += range[1] - range[0];
+                }
+            }
+            final long initialBytes = mTotalBytes > 0 ?
+                    mTotalBytes - plannedBytes : mPlan.get(0)[0];
+            if (count > 1) {
+                Log.d(TAG, "Downloading " + plannedBytes + " bytes in " + count + " segments");
+            }
+
+            IOException error = null;
+            boolean complete = true;
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+                 FileChannel channel = file.getChannel();
+                 RandomAccessFile hashFile = mDigest != null ?
+                         new RandomAccessFile(mDestination, "r") : null) {
+                for (int i = 0; i < count; i++) {
+                    long[] range = mPlan.get(i);
+                    boolean hashing = i == 0 && mDigest != null && range[0] == mHashedBytes;
+                    segments[i] = new SegmentThread(i == 0 ? mClient : null, url, validator,
+                            channel, mJournal, hashing ? mDigest : null, mBandwidthGovernor,
+                            range[0], range[1], doneSignal);
+                    if (hashing) {
+                        mHashingSegment = segments[i];
+                    }
+                    segments[i].start();
+                }
+
+                boolean justResumed = true;
+                boolean done = false;
+                long lastCheckpoint = SystemClock.elapsedRealtime();
+                while (!done && error == null && !isInterrupted()) {
+                    try {
+                        done = doneSignal.await(SEGMENT_PROGRESS_INTERVAL_MS,
+                                TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // Cancelled, restore the flag checked by the caller
+                        interrupt();
+                    }
+                    for (SegmentThread segment : segments) {
+                        if (segment.mError != null) {
+                            error = segment.mError;
+                            break;
+                        }
+                    }
+                    mTotalBytesRead = initialBytes + getSegmentsBytesRead(segments);
+                    reportProgress(justResumed);
+                    try {
+                        // Start measuring the new mirror from scratch
+                        justResumed = switchMirrorIfSlow(segments) || handleStalls(segments);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    updateDigest(hashFile, segments, HASH_BYTES_PER_INTERVAL);
+
+                    final long now = SystemClock.elapsedRealtime();
+                    if (mJournal != null && now - lastCheckpoint > CHECKPOINT_INTERVAL_MS) {
+                        mJournal.checkpoint();
+                        lastCheckpoint = now;
+                    }
+                }
+
+                // Don't leave anything writing to the channel once we close it
+                for (SegmentThread segment : segments) {
+                    segment.stopSegment();
+                }
+                for (SegmentThread segment : segments) {
+                    try {
+                        segment.join();
+                    } catch (InterruptedException e) {
+                        interrupt();
+                    }
+                }
+                if (mHashingSegment != null) {
+                    // Everything the segment wrote was hashed, a retry can go on from there
+                    mHashedBytes = mHashingSegment.mStart + mHashingSegment.mBytesRead;
+                    mHashingSegment = null;
+                }
+                mTotalBytesRead = initialBytes + getSegmentsBytesRead(segments);
+
+                for (SegmentThread segment : segments) {
+                    complete &= segment.isComplete();
+                }
+                if (complete && error == null && mDigest != null) {
+                    updateDigest(hashFile, segments, Long.MAX_VALUE);
+                    if (mDigest != null && mHashedBytes == getContiguousBytes(segments)) {
+                        mSha256 = toHexString(mDigest.digest());
+                    }
+                }
+            }
+
+            if (mJournal != null) {
+                mJournal.checkpoint();
+            }
+
+            if (error != null) {
+                throw error;
+            }
+            return complete;
         }
 
         private void changeClientUrl(URL newUrl) throws IOException {
             String range = mClient.getRequestProperty("Range");
-            mClient.disconnect();
-            mClient = (HttpURLConnection) newUrl.openConnection();
+            String ifRange = mClient.getRequestProperty("If-Range");
+            // Keep the connection for the next request to the same host
+            HttpTransport.release(mClient);
+            mClient = HttpTransport.open(newUrl);
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
+            if (ifRange != null) {
+                mClient.setRequestProperty("If-Range", ifRange);
+            }
         }
 
         private void handleDuplicateLinks() throws IOException {
             String protocol = mClient.getURL().getProtocol();
+            MirrorSelector mirrors = new MirrorSelector();
 
-            class DuplicateLink {
-                private final String mUrl;
-                private final int mPriority;
-                private DuplicateLink(String url, int priority) {
-                    mUrl = url;
-                    mPriority = priority;
-                }
-            }
-
-            PriorityQueue<DuplicateLink> duplicates = null;
+            // The target of the redirect comes first unless the others are faster
+            String location = mClient.getHeaderField("Location");
+            addMirror(mirrors, protocol, location, Integer.MIN_VALUE);
 
             for (Map.Entry<String, List<String>> entry : mClient.getHeaderFields().entrySet()) {
                 if ("Link".equalsIgnoreCase((entry.getKey()))) {
-                    duplicates = new PriorityQueue<>(entry.getValue().size(),
-                            Comparator.comparingInt(d -> d.mPriority));
-
                     // https://tools.ietf.org/html/rfc6249
                     // https://tools.ietf.org/html/rfc5988#section-5
                     String regex = "(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?";
@@ -212,8 +1040,7 @@ public class HttpURLConnectionClient implements DownloadClient {
                             String url = matcher.group(1);
                             String pri = matcher.group(2);
                             int priority = pri != null ? Integer.parseInt(pri) : 999999;
-                            duplicates.add(new DuplicateLink(url, priority));
-                            Log.d(TAG, "Adding duplicate link " + url);
+                            addMirror(mirrors, protocol, url, priority);
                         } else {
                             Log.d(TAG, "Ignoring link " + field);
                         }
@@ -221,96 +1048,198 @@ public class HttpURLConnectionClient implements DownloadClient {
                 }
             }
 
-            String newUrl = mClient.getHeaderField("Location");
-            for (;;) {
+            if (mirrors.size() > 1) {
+                mirrors.probe();
+            }
+
+            IOException error = new IOException("No usable link to download from");
+            for (MirrorSelector.Mirror mirror : mirrors.getMirrors()) {
                 try {
-                    URL url = new URL(newUrl);
-                    if (!url.getProtocol().equals(protocol)) {
-                        // If we hadn't handled duplicate links, we wouldn't have
-                        // used this url.
-                        throw new IOException("Protocol changes are not allowed");
-                    }
-                    Log.d(TAG, "Downloading from " + newUrl);
-                    changeClientUrl(url);
-                    mClient.setConnectTimeout(5000);
+                    Log.d(TAG, "Downloading from " + mirror.getUrl());
+                    changeClientUrl(mirror.getUrl());
+                    setTimeouts(mClient);
                     mClient.connect();
                     if (!isSuccessCode(mClient.getResponseCode())) {
                         throw new IOException("Server replied with " + mClient.getResponseCode());
                     }
+                    if (mirrors.size() > 1) {
+                        mMirrors = mirrors;
+                        mMirror = mirror;
+                    }
                     return;
                 } catch (IOException e) {
-                    if (duplicates != null && !duplicates.isEmpty()) {
-                        DuplicateLink link = duplicates.poll();
-                        if (link != null) {
-                            duplicates.remove(link);
-                            newUrl = link.mUrl;
-                            Log.e(TAG, "Using duplicate link " + link.mUrl, e);
-                        }
-                    } else {
-                        throw e;
-                    }
+                    Log.e(TAG, "Could not download from " + mirror.getUrl(), e);
+                    mirror.setFailed();
+                    error = e;
                 }
             }
+            throw error;
         }
 
-        @Override
-        public void run() {
-            boolean justResumed = false;
+        private void addMirror(MirrorSelector mirrors, String protocol, String url,
+                int priority) {
+            if (url == null) {
+                return;
+            }
             try {
-                mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
-                mClient.connect();
-                int responseCode = mClient.getResponseCode();
+                URL mirror = new URL(url);
+                if (!mirror.getProtocol().equals(protocol)) {
+                    // If we hadn't handled duplicate links, we wouldn't have
+                    // used this url.
+                    Log.e(TAG, "Protocol changes are not allowed, ignoring " + url);
+                    return;
+                }
+                Log.d(TAG, "Adding duplicate link " + url);
+                mirrors.add(mirror, priority);
+            } catch (MalformedURLException e) {
+                Log.e(TAG, "Ignoring invalid link " + url, e);
+            }
+        }
 
-                if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
-                    handleDuplicateLinks();
-                    responseCode = mClient.getResponseCode();
+        /**
+         * Make one attempt at downloading the file
+         *
+         * @param resume whether to continue from what was already downloaded
+         * @return true if the file is complete, false if the download was cancelled
+         */
+        private boolean attemptDownload(boolean resume) throws IOException {
+            if (resume) {
+                resume = prepareResume();
+                if (mJournal != null && mJournal.isComplete()) {
+                    Log.d(TAG, "All the chunks were already downloaded");
+                    return true;
                 }
+            }
+
+            setTimeouts(mClient);
+            mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
+            mClient.connect();
+            int responseCode = mClient.getResponseCode();
 
+            if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
+                handleDuplicateLinks();
+                responseCode = mClient.getResponseCode();
+            }
+
+            if (!mResponded) {
+                mResponded = true;
                 mCallback.onResponse(new Headers());
+            }
 
-                if (mResume && isPartialContentCode(responseCode)) {
-                    justResumed = true;
-                    mTotalBytesRead = mDestination.length();
-                    Log.d(TAG, "The server fulfilled the partial content request");
-                } else if (mResume || !isSuccessCode(responseCode)) {
-                    Log.e(TAG, "The server replied with code " + responseCode);
-                    mCallback.onFailure(isInterrupted());
-                    return;
+            if (resume && isPartialContentCode(responseCode)) {
+                long expectedStart = mJournal != null ? mPlan.get(0)[0] : mResumeOffset;
+                long start = parseContentRangeStart(mClient.getHeaderField("Content-Range"));
+                if (start >= 0 && start != expectedStart) {
+                    throw new IOException("The server sent the wrong range, starting at " +
+                            start);
                 }
+                if (mJournal != null) {
+                    mTotalBytes = mJournal.getLength();
+                } else {
+                    long contentLength = mClient.getContentLengthLong();
+                    mTotalBytes = contentLength >= 0 ? contentLength + expectedStart : -1;
+                    List<long[]> ranges = new ArrayList<>();
+                    ranges.add(new long[] { expectedStart, mTotalBytes });
+                    mPlan = ranges;
+                }
+                mRangesSupported = true;
+                Log.d(TAG, "The server fulfilled the partial content request");
+            } else if (resume && mJournal != null && responseCode == 200) {
+                // The If-Range condition failed, the file changed on the server
+                Log.d(TAG, "The file changed on the server, starting over");
+                mJournal.close();
+                mJournal = null;
+                prepareFreshDownload(responseCode);
+            } else if (resume || !isSuccessCode(responseCode)) {
+                throw new HttpStatusException(responseCode,
+                        mClient.getHeaderField("Retry-After"));
+            } else {
+                prepareFreshDownload(responseCode);
+            }
 
-                try (
-                        InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
-                ) {
-                    mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
-                    int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed(justResumed);
-                        calculateEta();
-                        justResumed = false; // otherwise we will never get speed and ETA again
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
-                        }
-                    }
-                    if (mProgressListener != null) {
-                        mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
-                    }
+            boolean complete = downloadPlan();
+            reportProgress(false);
+            if (!complete && !isInterrupted()) {
+                throw new IOException("The download stopped before the end of the file");
+            }
+            return complete && !isInterrupted();
+        }
 
-                    outputStream.flush();
+        /**
+         * Get ready for another attempt, continuing from what is on disk if anything
+         *
+         * @return whether the next attempt resumes the download
+         */
+        private boolean prepareRetry() throws IOException {
+            if (mJournal != null) {
+                mJournal.close();
+                mJournal = null;
+            }
+            mClient.disconnect();
+            // Start from the original url, the redirect may lead to another mirror
+            mClient = HttpTransport.open(mUrl);
+            mPlan = null;
+            mMirrors = null;
+            mMirror = null;
+            mRangesSupported = false;
+            mSlowSince = -1;
+            boolean resume = canResume();
+            if (!resume && mSegments > 1) {
+                mClient.setRequestProperty("Range", "bytes=0-");
+            }
+            return resume;
+        }
 
-                    if (isInterrupted()) {
-                        mCallback.onFailure(true);
-                    } else {
-                        mCallback.onSuccess();
+        @Override
+        public void run() {
+            boolean resume = mResume;
+            int failures = 0;
+            try {
+                for (;;) {
+                    final long bytesBefore = DownloadJournal.getDownloadedBytes(mDestination);
+                    try {
+                        if (attemptDownload(resume)) {
+                            if (mJournal != null) {
+                                // Kept until the file is verified, the preallocated
+                                // length says nothing about what was written
+                                mJournal.close();
+                                mJournal = null;
+                            }
+                            mCallback.onSuccess();
+                        } else {
+                            mCallback.onFailure(isInterrupted());
+                        }
+                        return;
+                    } catch (IOException e) {
+                        if (isInterrupted() || mRetryPolicy == null) {
+                            throw e;
+                        }
+                        // The budget is for failures in a row, progress refills it
+                        if (DownloadJournal.getDownloadedBytes(mDestination) > bytesBefore) {
+                            failures = 0;
+                        }
+                        long delay = mRetryPolicy.getDelay(++failures, e);
+                        if (delay < 0) {
+                            throw e;
+                        }
+                        Log.e(TAG, "Download failed, retrying in " + delay + " ms", e);
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ie) {
+                            Log.d(TAG, "Cancelled while waiting to retry");
+                            mCallback.onFailure(true);
+                            return;
+                        }
+                        resume = prepareRetry();
                     }
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Error downloading file", e);
                 mCallback.onFailure(isInterrupted());
             } finally {
+                if (mJournal != null) {
+                    mJournal.close();
+                }
                 mClient.disconnect();
             }
         }
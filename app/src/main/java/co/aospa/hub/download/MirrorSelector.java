@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders the mirrors of a file, as announced by Link: rel=duplicate headers, by how
+ * fast they actually are for this device rather than by their advertised priority.
+ * The best candidates are probed in parallel by downloading a small range of the file.
+ */
+class MirrorSelector {
+
+    private static final String TAG = "MirrorSelector";
+
+    private static final int MAX_PROBES = 3;
+    private static final int PROBE_SIZE = 256 * 1024;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+
+    static class Mirror {
+        private final URL mUrl;
+        private final int mPriority;
+        // Bytes per second, -1 if unknown and 0 if the mirror failed
+        private volatile long mSpeed = -1;
+
+        private Mirror(URL url, int priority) {
+            mUrl = url;
+            mPriority = priority;
+        }
+
+        URL getUrl() {
+            return mUrl;
+        }
+
+        long getSpeed() {
+            return mSpeed;
+        }
+
+        void setSpeed(long speed) {
+            mSpeed = speed;
+        }
+
+        void setFailed() {
+            mSpeed = 0;
+        }
+    }
+
+    private final List<Mirror> mMirrors = new ArrayList<>();
+
+    /**
+     * @param priority the priority of the mirror, lower values are preferred
+     */
+    void add(URL url, int priority) {
+        for (Mirror mirror : mMirrors) {
+            if (mirror.mUrl.toString().equals(url.toString())) {
+                return;
+            }
+        }
+        mMirrors.add(new Mirror(url, priority));
+    }
+
+    int size() {
+        return mMirrors.size();
+    }
+
+    /**
+     * Get the mirrors, the fastest ones first
+     */
+    List<Mirror> getMirrors() {
+        return mMirrors;
+    }
+
+    /**
+     * Get the fastest mirror known to work, excluding the given one
+     *
+     * @return the mirror, or null if there's none
+     */
+    Mirror getFastest(Mirror exclude) {
+        Mirror fastest = null;
+        for (Mirror mirror : mMirrors) {
+            if (mirror != exclude && mirror.mSpeed > 0 &&
+                    (fastest == null || mirror.mSpeed > fastest.mSpeed)) {
+                fastest = mirror;
+            }
+        }
+        return fastest;
+    }
+
+    /**
+     * Measure the speed of the mirrors with the highest priority in parallel and
+     * sort all of them, fastest first. Probes still running at the deadline are
+     * measured on what they got so far. Mirrors that weren't measured keep their
+     * relative order after the measured ones, mirrors that failed go last.
+     */
+    void probe() {
+        mMirrors.sort(Comparator.comparingInt(m -> m.mPriority));
+        final int count = Math.min(MAX_PROBES, mMirrors.size());
+        final CountDownLatch doneSignal = new CountDownLatch(count);
+        final Probe[] probes = new Probe[count];
+        for (int i = 0; i < count; i++) {
+            probes[i] = new Probe(mMirrors.get(i).mUrl, doneSignal);
+            probes[i].start();
+        }
+        try {
+            if (!doneSignal.await(PROBE_TIMEOUT_MS * 2, TimeUnit.MILLISECONDS)) {
+                Log.d(TAG, "Some probes didn't complete in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            mMirrors.get(i).mSpeed = probes[i].getSpeed(now);
+            probes[i].stopProbe();
+        }
+        mMirrors.sort(Comparator.comparingInt((Mirror m) -> getRank(m.mSpeed))
+                .thenComparing((a, b) -> Long.compare(b.mSpeed, a.mSpeed)));
+    }
+
+    /**
+     * Measured mirrors come first, then the ones of unknown speed and the failed ones
+     */
+    private static int getRank(long speed) {
+        return speed > 0 ? 0 : speed < 0 ? 1 : 2;
+    }
+
+    private static class Probe extends Thread {
+        private final URL mUrl;
+        private final CountDownLatch mDoneSignal;
+
+        private volatile HttpURLConnection mConnection;
+        private volatile long mStart = -1;
+        private volatile long mBytesRead;
+        // Bytes per second once done, -1 while running and 0 if the probe failed
+        private volatile long mSpeed = -1;
+
+        private Probe(URL url, CountDownLatch doneSignal) {
+            mUrl = url;
+            mDoneSignal = doneSignal;
+        }
+
+        /**
+         * Get the measured speed, or the one so far if the probe is still running
+         *
+         * @return the speed in bytes per second, -1 if unknown and 0 if the probe failed
+         */
+        private long getSpeed(long now) {
+            final long speed = mSpeed;
+            if (speed >= 0) {
+                return speed;
+            }
+            final long start = mStart;
+            final long bytesRead = mBytesRead;
+            if (start < 0 || bytesRead == 0) {
+                return -1;
+            }
+            Log.d(TAG, mUrl + " served " + bytesRead + " bytes before the deadline");
+            return Math.max(bytesRead * 1000 / Math.max(now - start, 1), 1);
+        }
+
+        private void stopProbe() {
+            HttpURLConnection connection = mConnection;
+            if (mSpeed < 0 && connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                long speed = measureSpeed();
+                Log.d(TAG, mUrl + " serves " + speed + " B/s");
+                mSpeed = speed;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not probe " + mUrl, e);
+                mSpeed = 0;
+            } finally {
+                mDoneSignal.countDown();
+            }
+        }
+
+        private long measureSpeed() throws IOException {
+            HttpURLConnection connection = HttpTransport.open(mUrl);
+            mConnection = connection;
+            try {
+                connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+                connection.setReadTimeout(PROBE_TIMEOUT_MS);
+                connection.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+                final long start = SystemClock.elapsedRealtime();
+                mStart = start;
+                connection.connect();
+                int responseCode = connection.getResponseCode();
+                if (responseCode / 100 != 2) {
+                    throw new IOException("Server replied with " + responseCode);
+                }
+                long bytesRead = 0;
+                // Closing the reply once it's read completely gives the connection back
+                // to the pool, the download will likely reuse the one of the fastest
+                // mirror
+                try (InputStream inputStream = connection.getInputStream()) {
+                    byte[] b = new byte[8192];
+                    int count;
+                    while (bytesRead < PROBE_SIZE && (count = inputStream.read(b)) != -1) {
+                        bytesRead += count;
+                        mBytesRead = bytesRead;
+                    }
+                }
+                if (bytesRead == 0) {
+                    throw new IOException("Empty reply");
+                }
+                // The time includes the connection setup: far away mirrors tend to be
+                // slower anyway and the cost is paid again for every segment
+                long elapsed = Math.max(SystemClock.elapsedRealtime() - start, 1);
+                return Math.max(bytesRead * 1000 / elapsed, 1);
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+        }
+    }
+}
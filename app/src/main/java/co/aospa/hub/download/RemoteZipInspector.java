@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the entries of a zip file on a server with range requests, without
+ * downloading it. Only the end of the file, its central directory and the
+ * requested entries are transferred.
+ */
+public class RemoteZipInspector {
+
+    private static final String TAG = "RemoteZipInspector";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    // Enough for the records at the end and the signature in the comment of OTA packages
+    private static final int TAIL_SIZE = 8 * 1024;
+    private static final long MAX_CENTRAL_DIRECTORY_SIZE = 4 * 1024 * 1024;
+    private static final long MAX_ENTRY_SIZE = 1024 * 1024;
+    private static final int TIMEOUT_MS = 10000;
+
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private static class Entry {
+        private long mCompressedSize;
+        private long mSize;
+        private long mHeaderOffset;
+        private int mMethod;
+        private long mCrc;
+    }
+
+    private final URL mUrl;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private long mLength = -1;
+
+    private RemoteZipInspector(URL url) {
+        mUrl = url;
+    }
+
+    /**
+     * Read the central directory of the zip file at the given url
+     *
+     * @throws IOException if the server doesn't support ranges or the file isn't a zip
+     */
+    public static RemoteZipInspector open(String url) throws IOException {
+        RemoteZipInspector inspector = new RemoteZipInspector(new URL(url));
+        inspector.readCentralDirectory();
+        return inspector;
+    }
+
+    /**
+     * @return the size of the whole zip file
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public boolean hasEntry(String name) {
+        return mEntries.containsKey(name);
+    }
+
+    /**
+     * Download and uncompress the given entry, meant for small files
+     *
+     * @throws ZipException if the entry doesn't exist, is too large or is corrupted
+     */
+    public byte[] readEntry(String name) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new ZipException("Entry " + name + " not found");
+        }
+        if (entry.mCompressedSize > MAX_ENTRY_SIZE || entry.mSize > MAX_ENTRY_SIZE) {
+            throw new ZipException("Entry " + name + " is too large");
+        }
+        byte[] data = fetch(getDataOffset(entry), (int) entry.mCompressedSize);
+        if (entry.mMethod == 0) {
+            checkCrc(name, entry, data);
+            return data;
+        } else if (entry.mMethod != 8) {
+            throw new ZipException("Unsupported compression method " + entry.mMethod);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] uncompressed = new byte[(int) entry.mSize];
+            int length = 0;
+            while (length < uncompressed.length && !inflater.finished()) {
+                int count = inflater.inflate(uncompressed, length, uncompressed.length - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != uncompressed.length) {
+                throw new ZipException("Truncated entry " + name);
+            }
+            checkCrc(name, entry, uncompressed);
+            return uncompressed;
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupted entry " + name + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void checkCrc(String name, Entry entry, byte[] data) throws ZipException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if (crc.getValue() != entry.mCrc) {
+            throw new ZipException("CRC mismatch for entry " + name);
+        }
+    }
+
+    /**
+     * Get where the data of the given entry starts in the zip file, so that it can be
+     * read straight from the server
+     *
+     * @throws ZipException if the entry doesn't exist or is compressed
+     */
+    public long getEntryDataOffset(String name) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new ZipException("Entry " + name + " not found");
+        }
+        if (entry.mMethod != 0) {
+            throw new ZipException("Entry " + name + " is compressed");
+        }
+        return getDataOffset(entry);
+    }
+
+    /**
+     * @return the uncompressed size of the given entry, -1 if it doesn't exist
+     */
+    public long getEntrySize(String name) {
+        Entry entry = mEntries.get(name);
+        return entry != null ? entry.mSize : -1;
+    }
+
+    private long getDataOffset(Entry entry) throws IOException {
+        // The extra field of the local header can differ from the central one
+        ByteBuffer header = ByteBuffer.wrap(fetch(entry.mHeaderOffset, LOCAL_HEADER_SIZE))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header");
+        }
+        return entry.mHeaderOffset + LOCAL_HEADER_SIZE +
+                getUnsignedShort(header, 26) + getUnsignedShort(header, 28);
+    }
+
+    private void readCentralDirectory() throws IOException {
+        byte[] tail = fetchTail(TAIL_SIZE);
+        int eocd = findEndOfCentralDirectory(tail);
+        if (eocd < 0 && tail.length < mLength) {
+            // The comment is larger than expected, get the largest possible one
+            tail = fetchTail(ZIP64_LOCATOR_SIZE + EOCD_SIZE + MAX_COMMENT_SIZE);
+            eocd = findEndOfCentralDirectory(tail);
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        long count = getUnsignedShort(buffer, eocd + 10);
+        long size = getUnsignedInt(buffer, eocd + 12);
+        long offset = getUnsignedInt(buffer, eocd + 16);
+        if (count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+            final int locator = eocd - ZIP64_LOCATOR_SIZE;
+            if (locator < 0 || buffer.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new ZipException("ZIP64 locator not found");
+            }
+            ByteBuffer zip64 = ByteBuffer.wrap(fetch(buffer.getLong(locator + 8),
+                    ZIP64_EOCD_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new ZipException("Invalid ZIP64 end of central directory");
+            }
+            count = zip64.getLong(32);
+            size = zip64.getLong(40);
+            offset = zip64.getLong(48);
+        }
+        if (size < 0 || size > MAX_CENTRAL_DIRECTORY_SIZE || offset < 0 ||
+                offset + size > mLength) {
+            throw new ZipException("Invalid central directory, " + size + " bytes at " + offset);
+        }
+
+        final long tailOffset = mLength - tail.length;
+        ByteBuffer directory;
+        if (offset >= tailOffset) {
+            // Small zip files fit in the tail we already have
+            directory = ByteBuffer.wrap(tail, (int) (offset - tailOffset), (int) size).slice()
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            directory = ByteBuffer.wrap(fetch(offset, (int) size))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        parseCentralDirectory(directory, count);
+        Log.d(TAG, "Found " + mEntries.size() + " entries in " + mUrl);
+    }
+
+    private void parseCentralDirectory(ByteBuffer directory, long count) throws ZipException {
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directory.limit() ||
+                    directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory header at " + position);
+            }
+            Entry entry = new Entry();
+            entry.mMethod = getUnsignedShort(directory, position + 10);
+            entry.mCrc = getUnsignedInt(directory, position + 16);
+            entry.mCompressedSize = getUnsignedInt(directory, position + 20);
+            entry.mSize = getUnsignedInt(directory, position + 24);
+            final int nameLength = getUnsignedShort(directory, position + 28);
+            final int extraLength = getUnsignedShort(directory, position + 30);
+            final int commentLength = getUnsignedShort(directory, position + 32);
+            entry.mHeaderOffset = getUnsignedInt(directory, position + 42);
+            final int nameOffset = position + CENTRAL_HEADER_SIZE;
+            if (nameOffset + nameLength + extraLength > directory.limit()) {
+                throw new ZipException("Truncated central directory");
+            }
+            byte[] name = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = directory.get(nameOffset + j);
+            }
+            readZip64Extra(directory, nameOffset + nameLength, extraLength, entry);
+            mEntries.put(new String(name, StandardCharsets.UTF_8), entry);
+            position = nameOffset + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Replace the values that don't fit the regular headers with the ones of the
+     * ZIP64 extra field, which only contains those, in order
+     */
+    private static void readZip64Extra(ByteBuffer directory, int start, int length,
+            Entry entry) throws ZipException {
+        final int end = start + length;
+        int position = start;
+        while (position + 4 <= end) {
+            final int id = getUnsignedShort(directory, position);
+            final int size = getUnsignedShort(directory, position + 2);
+            position += 4;
+            if (id == ZIP64_EXTRA_ID) {
+                final int fieldEnd = Math.min(position + size, end);
+                if (entry.mSize == 0xffffffffL) {
+                    entry.mSize = getZip64Value(directory, position, fieldEnd);
+                    position += 8;
+                }
+                if (entry.mCompressedSize == 0xffffffffL) {
+                    entry.mCompressedSize = getZip64Value(directory, position, fieldEnd);
+                    position += 8;
+                }
+                if (entry.mHeaderOffset == 0xffffffffL) {
+                    entry.mHeaderOffset = getZip64Value(directory, position, fieldEnd);
+                }
+                return;
+            }
+            position += size;
+        }
+    }
+
+    private static long getZip64Value(ByteBuffer buffer, int position, int end)
+            throws ZipException {
+        if (position + 8 > end) {
+            throw new ZipException("Truncated ZIP64 extra field");
+        }
+        return buffer.getLong(position);
+    }
+
+    private int findEndOfCentralDirectory(byte[] tail) {
+        ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        // The record is followed by the comment, nothing else
+        for (int i = tail.length - EOCD_SIZE; i >= 0; i--) {
+            if (buffer.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + getUnsignedShort(buffer, i + 20) == tail.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getUnsignedShort(ByteBuffer buffer, int position) {
+        return buffer.getShort(position) & 0xffff;
+    }
+
+    private static long getUnsignedInt(ByteBuffer buffer, int position) {
+        return buffer.getInt(position) & 0xffffffffL;
+    }
+
+    private byte[] fetchTail(int length) throws IOException {
+        return fetch("bytes=-" + length, -1);
+    }
+
+    private byte[] fetch(long start, int length) throws IOException {
+        if (length == 0) {
+            return new byte[0];
+        }
+        return fetch("bytes=" + start + "-" + (start + length - 1), length);
+    }
+
+    private byte[] fetch(String range, int length) throws IOException {
+        HttpURLConnection connection = HttpTransport.open(mUrl);
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setRequestProperty("Range", range);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Range requests not supported, server replied with " +
+                        responseCode);
+            }
+            Matcher matcher = CONTENT_RANGE_PATTERN.matcher(
+                    String.valueOf(connection.getHeaderField("Content-Range")));
+            if (!matcher.matches()) {
+                throw new IOException("Invalid Content-Range " +
+                        connection.getHeaderField("Content-Range"));
+            }
+            mLength = Long.parseLong(matcher.group(3));
+            final long replyLength = Long.parseLong(matcher.group(2)) -
+                    Long.parseLong(matcher.group(1)) + 1;
+            if ((length >= 0 && replyLength != length) || replyLength > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected range " + matcher.group());
+            }
+            byte[] data = new byte[(int) replyLength];
+            try (InputStream inputStream = connection.getInputStream()) {
+                new DataInputStream(inputStream).readFully(data);
+            }
+            return data;
+        } catch (IOException e) {
+            // Don't read the whole file if the server ignored the range
+            connection.disconnect();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.util.Random;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Decides whether a failed download is worth trying again and how long to wait
+ * before doing so. The delay doubles with every consecutive failure, with some
+ * jitter so that devices that lost the same server don't all come back at once.
+ */
+public class RetryPolicy {
+
+    private final int mMaxRetries;
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param maxRetries the number of consecutive failures to retry
+     * @param initialDelayMs the delay before the first retry
+     * @param maxDelayMs the maximum delay between two attempts
+     */
+    public RetryPolicy(int maxRetries, long initialDelayMs, long maxDelayMs) {
+        mMaxRetries = maxRetries;
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Get how long to wait before retrying
+     *
+     * @param failures the number of consecutive failures so far, including this one
+     * @param error the error that made the last attempt fail
+     * @return the delay in milliseconds, or -1 to give up
+     */
+    long getDelay(int failures, IOException error) {
+        if (failures > mMaxRetries || !isRetryable(error)) {
+            return -1;
+        }
+        long delay = mInitialDelayMs << Math.min(failures - 1, 30);
+        delay = Math.min(delay, mMaxDelayMs);
+        // Somewhere between half and all of the delay
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        if (error instanceof HttpStatusException) {
+            long retryAfter = ((HttpStatusException) error).getRetryAfterMs();
+            if (retryAfter > delay) {
+                delay = Math.min(retryAfter, mMaxDelayMs);
+            }
+        }
+        return delay;
+    }
+
+    private static boolean isRetryable(IOException error) {
+        if (error instanceof HttpStatusException) {
+            int statusCode = ((HttpStatusException) error).getStatusCode();
+            switch (statusCode) {
+                case 408: // Request Timeout
+                case 425: // Too Early
+                case 429: // Too Many Requests
+                    return true;
+                case 501: // Not Implemented
+                case 505: // HTTP Version Not Supported
+                    return false;
+                default:
+                    return statusCode / 100 == 5;
+            }
+        }
+        if (error instanceof SSLPeerUnverifiedException) {
+            return false;
+        }
+        for (Throwable cause = error.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof CertificateException) {
+                return false;
+            }
+            if (cause instanceof ErrnoException) {
+                int errno = ((ErrnoException) cause).errno;
+                if (errno == OsConstants.ENOSPC || errno == OsConstants.EDQUOT ||
+                        errno == OsConstants.EROFS) {
+                    // Waiting won't make room on the device
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -22,6 +22,10 @@ public final class Constants {
 
     public static final String AB_PAYLOAD_BIN_PATH = "payload.bin";
     public static final String AB_PAYLOAD_PROPERTIES_PATH = "payload_properties.txt";
+    public static final String METADATA_PATH = "META-INF/com/android/metadata";
+    public static final String METADATA_POST_TIMESTAMP_KEY = "post-timestamp=";
+    public static final String METADATA_PRE_DEVICE_KEY = "pre-device=";
+    public static final String PAYLOAD_FILE_SIZE_KEY = "FILE_SIZE=";
 
     public static final int AUTO_UPDATES_CHECK_INTERVAL_NEVER = 0;
     public static final int AUTO_UPDATES_CHECK_INTERVAL_DAILY = 1;
@@ -35,6 +39,9 @@ public final class Constants {
     public static final String PREF_METERED_NETWORK_WARNING = "pref_metered_network_warning";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
+    public static final String PREF_UPDATES_LIST_URL = "updates_list_url";
+    public static final String PREF_UPDATES_LIST_ETAG = "updates_list_etag";
+    public static final String PREF_UPDATES_LIST_LAST_MODIFIED = "updates_list_last_modified";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
@@ -41,17 +41,18 @@ public class FileUtils {
     }
 
     private static class CallbackByteChannel implements ReadableByteChannel {
-        private final ProgressCallBack mCallback;
+        private final ProgressReporter mReporter;
         private final long mSize;
         private final ReadableByteChannel mReadableByteChannel;
         private long mSizeRead;
-        private int mProgress;
 
         private CallbackByteChannel(ReadableByteChannel readableByteChannel, long expectedSize,
                 ProgressCallBack callback) {
-            this.mCallback = callback;
+            this.mReporter = newReporter(callback);
             this.mSize = expectedSize;
             this.mReadableByteChannel = readableByteChannel;
+            mReporter.setTotal(expectedSize);
+            mReporter.reset(0);
         }
 
         @Override
@@ -69,16 +70,25 @@ public class FileUtils {
             int read;
             if ((read = mReadableByteChannel.read(bb)) > 0) {
                 mSizeRead += read;
-                int progress = mSize > 0 ? Math.round(mSizeRead * 100.f / mSize) : -1;
-                if (mProgress != progress) {
-                    mCallback.update(progress);
-                    mProgress = progress;
+                if (mSizeRead >= mSize) {
+                    mReporter.report(mSizeRead);
+                } else {
+                    mReporter.update(mSizeRead);
                 }
             }
             return read;
         }
     }
 
+    /**
+     * Create a reporter forwarding the progress to the given callback at most twice
+     * per second
+     */
+    public static ProgressReporter newReporter(ProgressCallBack callback) {
+        return new ProgressReporter(ProgressReporter.DEFAULT_INTERVAL_MS,
+                (bytes, total, progress, speed, eta) -> callback.update(progress));
+    }
+
     public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
             throws IOException {
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import android.os.RecoverySystem;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Checks that an update package is intact and signed with the platform keys.
+ *
+ * The signature is checked by RecoverySystem, which reads the file and hashes it in
+ * turns. A second thread reads the file a little ahead of it, so that the storage
+ * is kept busy while the data is being hashed and the hashing finds the data
+ * in the page cache.
+ */
+public class PackageVerifier {
+
+    private static final String TAG = "PackageVerifier";
+
+    // How far the read-ahead can get, it mustn't evict data that wasn't hashed yet
+    private static final long READ_AHEAD_BYTES = 64 * 1024 * 1024;
+    private static final int READ_AHEAD_BUFFER_SIZE = 1024 * 1024;
+
+    private final File mFile;
+    private final long mLength;
+    private ProgressReporter mReporter;
+    private boolean mCheckEntries = true;
+
+    private volatile boolean mCancelled;
+    private volatile Thread mThread;
+    // The signature check is known to have got this far
+    private long mVerifiedBytes;
+    private boolean mVerifying;
+
+    public PackageVerifier(File file) {
+        mFile = file;
+        mLength = file.length();
+    }
+
+    /**
+     * Report the progress of the signature check, which reads the whole file
+     */
+    public PackageVerifier setListener(ProgressReporter.Listener listener) {
+        mReporter = new ProgressReporter(ProgressReporter.DEFAULT_INTERVAL_MS, listener);
+        mReporter.setTotal(mLength);
+        return this;
+    }
+
+    /**
+     * Whether to check the entries against their CRCs first, which finds damaged
+     * packages a lot faster than the signature check does. It's not needed when the
+     * file is known to match the published digest. Enabled by default.
+     */
+    public PackageVerifier setCheckEntries(boolean checkEntries) {
+        mCheckEntries = checkEntries;
+        return this;
+    }
+
+    /**
+     * Stop the verification as soon as possible, verify() then throws an
+     * InterruptedIOException
+     */
+    public void cancel() {
+        mCancelled = true;
+        Thread thread = mThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Verify the package, blocking until done
+     *
+     * @throws InterruptedIOException if the verification was cancelled
+     * @throws IOException if the package is damaged or can't be read
+     * @throws GeneralSecurityException if the package isn't properly signed
+     */
+    public void verify() throws IOException, GeneralSecurityException {
+        mThread = Thread.currentThread();
+        Thread readAhead = null;
+        try {
+            throwIfCancelled();
+            try (ZipReader zipReader = ZipReader.open(mFile)) {
+                if (mCheckEntries) {
+                    zipReader.checkEntries();
+                }
+            }
+            throwIfCancelled();
+
+            synchronized (this) {
+                mVerifying = true;
+            }
+            readAhead = new Thread(this::readAhead);
+            readAhead.start();
+            if (mReporter != null) {
+                mReporter.reset(0);
+            }
+            RecoverySystem.verifyPackage(mFile, this::onVerifyProgress, null);
+            throwIfCancelled();
+            Log.d(TAG, mFile.getName() + " verified");
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Verification cancelled");
+        } catch (IOException | GeneralSecurityException e) {
+            // Interrupted channels close themselves and fail with other exceptions
+            throwIfCancelled();
+            throw e;
+        } finally {
+            synchronized (this) {
+                mVerifying = false;
+                notifyAll();
+            }
+            if (readAhead != null) {
+                readAhead.interrupt();
+            }
+            mThread = null;
+            // Don't leave the flag of the cancellation to the caller
+            //noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+        }
+    }
+
+    private void throwIfCancelled() throws InterruptedIOException {
+        if (mCancelled) {
+            throw new InterruptedIOException("Verification cancelled");
+        }
+    }
+
+    private void onVerifyProgress(int progress) {
+        if (mCancelled) {
+            // Unwinds RecoverySystem, which closes the file on the way
+            throw new CancellationException();
+        }
+        final long bytes = mLength * progress / 100;
+        synchronized (this) {
+            mVerifiedBytes = bytes;
+            notifyAll();
+        }
+        if (mReporter != null) {
+            mReporter.report(bytes);
+        }
+    }
+
+    /**
+     * Read the file ahead of the signature check, without getting too far ahead
+     */
+    private void readAhead() {
+        byte[] buffer = new byte[READ_AHEAD_BUFFER_SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            long position = 0;
+            while (position < mLength) {
+                synchronized (this) {
+                    while (mVerifying && position - mVerifiedBytes >= READ_AHEAD_BYTES) {
+                        wait();
+                    }
+                    if (!mVerifying) {
+                        return;
+                    }
+                }
+                int count = file.read(buffer);
+                if (count < 0) {
+                    return;
+                }
+                position += count;
+            }
+        } catch (IOException e) {
+            // Only a matter of speed, the verification reads the file itself
+            Log.d(TAG, "Read-ahead of " + mFile.getName() + " stopped", e);
+        } catch (InterruptedException e) {
+            // Done verifying
+        }
+    }
+}
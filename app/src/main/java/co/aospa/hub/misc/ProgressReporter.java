@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import android.os.SystemClock;
+
+/**
+ * Turns a growing amount of transferred bytes into progress, speed and ETA updates,
+ * delivered at a bounded rate. The speed is averaged over the last few seconds so
+ * that the ETA doesn't jump around with every short stall or burst.
+ *
+ * Not thread safe, it's meant to be fed by the thread doing the transfer.
+ */
+public class ProgressReporter {
+
+    public static final long DEFAULT_INTERVAL_MS = 500;
+
+    // The speed is measured over this much time
+    private static final long WINDOW_MS = 10000;
+    private static final int MAX_SAMPLES = 64;
+    // Don't bother looking at the clock for less than this
+    private static final long SAMPLE_BYTES = 64 * 1024;
+
+    public interface Listener {
+        /**
+         * @param progress the percentage of bytes transferred, -1 if the total is unknown
+         * @param speed the speed in bytes per second, -1 if unknown
+         * @param eta the time left in seconds, -1 if unknown
+         */
+        void onProgress(long bytes, long total, int progress, long speed, long eta);
+    }
+
+    private final long mIntervalMs;
+    private final Listener mListener;
+
+    private long mTotal = -1;
+
+    // Ring buffer of {time, bytes} samples
+    private final long[] mSampleTimes = new long[MAX_SAMPLES];
+    private final long[] mSampleBytes = new long[MAX_SAMPLES];
+    private int mFirstSample;
+    private int mSampleCount;
+
+    private long mNextCheckBytes;
+    private long mLastReport = -1;
+    private long mSpeed = -1;
+    private long mEta = -1;
+
+    public ProgressReporter(long intervalMs, Listener listener) {
+        mIntervalMs = intervalMs;
+        mListener = listener;
+    }
+
+    /**
+     * @param total the amount of bytes to transfer, -1 if unknown
+     */
+    public void setTotal(long total) {
+        mTotal = total;
+    }
+
+    /**
+     * Forget the past samples and start measuring from the given amount of bytes,
+     * e.g. after the transfer was paused or switched to a different source
+     */
+    public void reset(long bytes) {
+        mSampleCount = 0;
+        mSpeed = -1;
+        mEta = -1;
+        mLastReport = -1;
+        mNextCheckBytes = bytes;
+        addSample(SystemClock.elapsedRealtime(), bytes);
+    }
+
+    /**
+     * Cheap enough to be called after every read, the listener is only notified
+     * once the interval has passed since the previous update
+     */
+    public void update(long bytes) {
+        if (bytes < mNextCheckBytes) {
+            return;
+        }
+        mNextCheckBytes = bytes + SAMPLE_BYTES;
+        final long now = SystemClock.elapsedRealtime();
+        if (mLastReport >= 0 && now - mLastReport < mIntervalMs) {
+            return;
+        }
+        report(now, bytes);
+    }
+
+    /**
+     * Notify the listener right away, e.g. when the transfer completes or when the
+     * caller already samples the progress at its own pace
+     */
+    public void report(long bytes) {
+        report(SystemClock.elapsedRealtime(), bytes);
+    }
+
+    /**
+     * @return the last measured speed in bytes per second, -1 if unknown
+     */
+    public long getSpeed() {
+        return mSpeed;
+    }
+
+    private void report(long now, long bytes) {
+        addSample(now, bytes);
+        final long elapsed = now - mSampleTimes[mFirstSample];
+        if (mSampleCount > 1 && elapsed > 0) {
+            mSpeed = (bytes - mSampleBytes[mFirstSample]) * 1000 / elapsed;
+        }
+        if (mSpeed > 0 && mTotal > 0) {
+            mEta = Math.max(mTotal - bytes, 0) / mSpeed;
+        }
+        mLastReport = now;
+        if (mListener != null) {
+            int progress = mTotal > 0 ? (int) Math.min(bytes * 100 / mTotal, 100) : -1;
+            mListener.onProgress(bytes, mTotal, progress, mSpeed, mEta);
+        }
+    }
+
+    private void addSample(long now, long bytes) {
+        // Keep one sample older than the window, so that it's always covered
+        while (mSampleCount > 1 &&
+                now - mSampleTimes[(mFirstSample + 1) % MAX_SAMPLES] >= WINDOW_MS) {
+            mFirstSample = (mFirstSample + 1) % MAX_SAMPLES;
+            mSampleCount--;
+        }
+        if (mSampleCount == MAX_SAMPLES) {
+            mFirstSample = (mFirstSample + 1) % MAX_SAMPLES;
+            mSampleCount--;
+        }
+        int index = (mFirstSample + mSampleCount) % MAX_SAMPLES;
+        mSampleTimes[index] = now;
+        mSampleBytes[index] = bytes;
+        mSampleCount++;
+    }
+}
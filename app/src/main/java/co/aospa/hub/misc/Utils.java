@@ -38,22 +38,24 @@ import org.json.JSONObject;
 import co.aospa.hub.R;
 import co.aospa.hub.UpdatesDbHelper;
 import co.aospa.hub.controller.UpdaterService;
+import co.aospa.hub.download.CatalogClient;
+import co.aospa.hub.download.DownloadJournal;
+import co.aospa.hub.model.PackageIndex;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateBaseInfo;
 import co.aospa.hub.model.UpdateInfo;
+import co.aospa.hub.model.UpdatePackage;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 public class Utils {
 
@@ -81,6 +83,36 @@ public class Utils {
         return new File(context.getCacheDir(), "updates.json");
     }
 
+    /**
+     * Get a client that writes the updates list to the given file, unless the
+     * server says the cached list is still current
+     */
+    public static CatalogClient newCatalogClient(Context context, File destination,
+            CatalogClient.Callback callback) {
+        String url = getServerURL(context);
+        CatalogClient client = new CatalogClient(url, destination, callback);
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        if (getCachedUpdateList(context).exists() &&
+                url.equals(preferences.getString(Constants.PREF_UPDATES_LIST_URL, null))) {
+            client.setValidators(
+                    preferences.getString(Constants.PREF_UPDATES_LIST_ETAG, null),
+                    preferences.getString(Constants.PREF_UPDATES_LIST_LAST_MODIFIED, null));
+        }
+        return client;
+    }
+
+    /**
+     * Remember the validators of the list that was just cached, see newCatalogClient()
+     */
+    public static void setCachedUpdateListValidators(Context context, String etag,
+            String lastModified) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(Constants.PREF_UPDATES_LIST_URL, getServerURL(context))
+                .putString(Constants.PREF_UPDATES_LIST_ETAG, etag)
+                .putString(Constants.PREF_UPDATES_LIST_LAST_MODIFIED, lastModified)
+                .apply();
+    }
+
     // This should really return an UpdateBaseInfo object, but currently this only
     // used to initialize UpdateInfo objects
     private static UpdateInfo parseJsonUpdate(JSONObject object) throws JSONException {
@@ -92,9 +124,44 @@ public class Utils {
         update.setFileSize(object.getLong("size"));
         update.setDownloadUrl(object.getString("url"));
         update.setVersion(object.getString("version_code"));
+        if (!object.isNull("sha256")) {
+            update.setSha256(object.getString("sha256").toLowerCase(Locale.ROOT));
+        }
+        JSONArray incrementals = object.optJSONArray("incrementals");
+        if (incrementals != null) {
+            List<UpdatePackage> packages = new ArrayList<>();
+            for (int i = 0; i < incrementals.length(); i++) {
+                try {
+                    packages.add(parseJsonPackage(incrementals.getJSONObject(i)));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Could not parse incremental of " + update.getName() +
+                            ", index=" + i, e);
+                }
+            }
+            update.setIncrementals(packages);
+        }
         return update;
     }
 
+    private static UpdatePackage parseJsonPackage(JSONObject object) throws JSONException {
+        UpdatePackage updatePackage = new UpdatePackage();
+        updatePackage.setName(object.getString("filename"));
+        updatePackage.setDownloadUrl(object.getString("url"));
+        updatePackage.setFileSize(object.getLong("size"));
+        updatePackage.setSourceTimestamp(object.optLong("source_datetime", 0));
+        if (!object.isNull("source_incremental")) {
+            updatePackage.setSourceIncremental(object.getString("source_incremental"));
+        }
+        if (!object.isNull("sha256")) {
+            updatePackage.setSha256(object.getString("sha256").toLowerCase(Locale.ROOT));
+        }
+        if (updatePackage.getSourceTimestamp() <= 0 &&
+                updatePackage.getSourceIncremental() == null) {
+            throw new JSONException("No source build");
+        }
+        return updatePackage;
+    }
+
     public static boolean isCompatible(UpdateBaseInfo update) {
         if (!SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false) &&
                 update.getTimestamp() <= SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
@@ -172,6 +239,13 @@ public class Utils {
         context.startService(intent);
     }
 
+    public static void triggerStreamingUpdate(Context context, String downloadId) {
+        final Intent intent = new Intent(context, UpdaterService.class);
+        intent.setAction(UpdaterService.ACTION_STREAM_UPDATE);
+        intent.putExtra(UpdaterService.EXTRA_DOWNLOAD_ID, downloadId);
+        context.startService(intent);
+    }
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
         Network activeNetwork = cm.getActiveNetwork();
@@ -218,36 +292,6 @@ public class Utils {
         return false;
     }
 
-    /**
-     * Get the offset to the compressed data of a file inside the given zip
-     *
-     * @param zipFile input zip file
-     * @param entryPath full path of the entry
-     * @return the offset of the compressed, or -1 if not found
-     * @throws IllegalArgumentException if the given entry is not found
-     */
-    public static long getZipEntryOffset(ZipFile zipFile, String entryPath) {
-        // Each entry has an header of (30 + n + m) bytes
-        // 'n' is the length of the file name
-        // 'm' is the length of the extra field
-        final int FIXED_HEADER_SIZE = 30;
-        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-        long offset = 0;
-        while (zipEntries.hasMoreElements()) {
-            ZipEntry entry = zipEntries.nextElement();
-            int n = entry.getName().length();
-            int m = entry.getExtra() == null ? 0 : entry.getExtra().length;
-            int headerSize = FIXED_HEADER_SIZE + n + m;
-            offset += headerSize;
-            if (entry.getName().equals(entryPath)) {
-                return offset;
-            }
-            offset += entry.getCompressedSize();
-        }
-        Log.e(TAG, "Entry " + entryPath + " not found");
-        throw new IllegalArgumentException("The given entry was not found");
-    }
-
     public static void removeUncryptFiles(File downloadPath) {
         File[] uncryptFiles = downloadPath.listFiles(
                 (dir, name) -> name.endsWith(Constants.UNCRYPT_FILE_EXT));
@@ -307,6 +351,7 @@ public class Utils {
         List<String> knownPaths = new ArrayList<>();
         for (UpdateInfo update : dbHelper.getUpdates()) {
             knownPaths.add(update.getFile().getAbsolutePath());
+            knownPaths.add(DownloadJournal.getJournalFile(update.getFile()).getAbsolutePath());
         }
         for (File file : files) {
             if (!knownPaths.contains(file.getAbsolutePath())) {
@@ -344,16 +389,135 @@ public class Utils {
         return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
     }
 
-    public static boolean isABUpdate(ZipFile zipFile) {
-        return zipFile.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
-                zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    public static boolean isABUpdate(ZipReader zipReader) {
+        return zipReader.getEntry(Constants.AB_PAYLOAD_BIN_PATH) != null &&
+                zipReader.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH) != null;
+    }
+
+    /**
+     * Get the build date of the target build from the content of the metadata file
+     * of an update package
+     *
+     * @return the timestamp, or -1 if not found
+     * @throws NumberFormatException if the value isn't a number
+     */
+    public static long getPostTimestamp(String metadata) {
+        String timestamp = getMetadataValue(metadata, Constants.METADATA_POST_TIMESTAMP_KEY);
+        return timestamp != null ? Long.parseLong(timestamp) : -1;
+    }
+
+    /**
+     * Check whether the metadata file of an update package allows installing it on
+     * this device. Packages that don't say which devices they're meant for are
+     * accepted.
+     */
+    public static boolean isForThisDevice(String metadata) {
+        String devices = getMetadataValue(metadata, Constants.METADATA_PRE_DEVICE_KEY);
+        if (devices == null) {
+            return true;
+        }
+        String device = SystemProperties.get(Constants.PROP_DEVICE);
+        // Packages built for several devices list all of them
+        for (String preDevice : devices.split("[,|]")) {
+            if (preDevice.trim().equals(device)) {
+                return true;
+            }
+        }
+        Log.d(TAG, "Package meant for " + devices + ", not " + device);
+        return false;
+    }
+
+    /**
+     * @return the value of the given key=, or null if the metadata doesn't have it
+     */
+    private static String getMetadataValue(String metadata, String key) {
+        for (String line : metadata.split("\\r?\\n")) {
+            if (line.startsWith(key)) {
+                return line.substring(key.length()).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the size of the payload announced by payload_properties.txt
+     *
+     * @return the size, or -1 if not found
+     * @throws NumberFormatException if the value isn't a number
+     */
+    public static long getPayloadFileSize(String[] payloadProperties) {
+        for (String property : payloadProperties) {
+            if (property.startsWith(Constants.PAYLOAD_FILE_SIZE_KEY)) {
+                return Long.parseLong(property.substring(
+                        Constants.PAYLOAD_FILE_SIZE_KEY.length()).trim());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Split the content of payload_properties.txt into the key=value pairs
+     * update_engine expects, whatever the line endings
+     */
+    public static String[] parsePayloadProperties(byte[] properties) {
+        return new String(properties, StandardCharsets.UTF_8).split("\\r?\\n");
     }
 
     public static boolean isABUpdate(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file);
-        boolean isAB = isABUpdate(zipFile);
-        zipFile.close();
-        return isAB;
+        try (ZipReader zipReader = ZipReader.open(file)) {
+            return isABUpdate(zipReader);
+        }
+    }
+
+    /**
+     * Whether the downloaded package of the update is an A/B one, only opening it if
+     * it wasn't indexed
+     */
+    public static boolean isABUpdate(UpdateInfo update) throws IOException {
+        PackageIndex index = update.getPackageIndex();
+        return index != null ? index.isAB() : isABUpdate(update.getFile());
+    }
+
+    /**
+     * Read what later needs to be known about the content of a package, so that it
+     * doesn't need to be opened again
+     */
+    public static PackageIndex readPackageIndex(File file) throws IOException {
+        try (ZipReader zipReader = ZipReader.open(file)) {
+            PackageIndex index = new PackageIndex();
+            List<PackageIndex.Entry> entries = new ArrayList<>();
+            for (ZipReader.Entry zipEntry : zipReader.getEntries()) {
+                PackageIndex.Entry entry = new PackageIndex.Entry();
+                entry.setName(zipEntry.getName());
+                entry.setMethod(zipEntry.getMethod());
+                entry.setCompressedSize(zipEntry.getCompressedSize());
+                entry.setSize(zipEntry.getSize());
+                entries.add(entry);
+            }
+            index.setEntries(entries);
+
+            index.setAB(isABUpdate(zipReader));
+            if (index.isAB()) {
+                ZipReader.Entry payload = zipReader.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+                if (payload.getMethod() == ZipReader.METHOD_STORED) {
+                    index.setPayloadOffset(zipReader.getDataOffset(payload));
+                    index.setPayloadSize(payload.getSize());
+                }
+                index.setPayloadProperties(parsePayloadProperties(
+                        zipReader.readEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH)));
+            }
+
+            if (zipReader.getEntry(Constants.METADATA_PATH) != null) {
+                String metadata = new String(zipReader.readEntry(Constants.METADATA_PATH),
+                        StandardCharsets.UTF_8);
+                try {
+                    index.setPostTimestamp(getPostTimestamp(metadata));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Invalid timestamp in the metadata of " + file.getName(), e);
+                }
+            }
+            return index;
+        }
     }
 
     public static boolean hasTouchscreen(Context context) {
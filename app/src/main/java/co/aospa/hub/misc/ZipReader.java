@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the structure of a local zip file from its central directory, and checks
+ * the data of its entries against the CRCs recorded there.
+ *
+ * The central directory is mapped and indexed once, the offsets of the data come
+ * from the actual local headers rather than being guessed from the central ones.
+ */
+public class ZipReader implements Closeable {
+
+    private static final String TAG = "ZipReader";
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final long MAX_CENTRAL_DIRECTORY_SIZE = 64 * 1024 * 1024;
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    // Entries are read whole in memory, this is meant for metadata
+    private static final int MAX_READ_SIZE = 16 * 1024 * 1024;
+
+    // Stored entries are split in chunks of this size, checked in parallel
+    private static final long CHECK_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int CHECK_BUFFER_SIZE = 256 * 1024;
+
+    public static class Entry {
+        private String mName;
+        private int mMethod;
+        private long mCrc;
+        private long mCompressedSize;
+        private long mSize;
+        private long mHeaderOffset;
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+    }
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private long mCentralDirectoryOffset;
+
+    private ZipReader(File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        mLength = mChannel.size();
+    }
+
+    /**
+     * Read the central directory of the given zip file
+     *
+     * @throws ZipException if the file isn't a valid zip, e.g. because it's truncated
+     */
+    public static ZipReader open(File file) throws IOException {
+        ZipReader reader = new ZipReader(file);
+        try {
+            reader.readCentralDirectory();
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    public Collection<Entry> getEntries() {
+        return mEntries.values();
+    }
+
+    /**
+     * @return the entry, null if the zip file doesn't have one with the given name
+     */
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Get where the data of the given entry starts, as written in its local header
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.mHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header of " + entry.mName);
+        }
+        final long offset = entry.mHeaderOffset + LOCAL_HEADER_SIZE +
+                getUnsignedShort(header, 26) + getUnsignedShort(header, 28);
+        if (offset + entry.mCompressedSize > mCentralDirectoryOffset) {
+            throw new ZipException("Data of " + entry.mName + " overlaps the central directory");
+        }
+        return offset;
+    }
+
+    /**
+     * Read the uncompressed data of a small entry, checking it against its CRC
+     *
+     * @throws FileNotFoundException if the zip file doesn't have the entry
+     */
+    public byte[] readEntry(String name) throws IOException {
+        Entry entry = mEntries.get(name);
+        if (entry == null) {
+            throw new FileNotFoundException("Couldn't find " + name + " in " + mFile.getName());
+        }
+        if (entry.mSize > MAX_READ_SIZE) {
+            throw new ZipException(name + " is too large to be read, " + entry.mSize + " bytes");
+        }
+        final long offset = getDataOffset(entry);
+        byte[] data = new byte[(int) entry.mSize];
+        if (entry.mMethod == METHOD_STORED) {
+            if (entry.mSize != entry.mCompressedSize) {
+                throw new ZipException("Invalid size of stored entry " + entry.mName);
+            }
+            map(offset, entry.mSize).get(data);
+        } else if (entry.mMethod == METHOD_DEFLATED) {
+            Inflater inflater = new Inflater(true);
+            try {
+                ByteBuffer compressed = map(offset, entry.mCompressedSize);
+                byte[] input = new byte[compressed.remaining()];
+                compressed.get(input);
+                inflater.setInput(input);
+                int count = 0;
+                while (count < data.length && !inflater.finished()) {
+                    final int inflated = inflater.inflate(data, count, data.length - count);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    count += inflated;
+                }
+                if (count != data.length) {
+                    throw new ZipException("Size mismatch in " + entry.mName + ", " + count +
+                            " bytes instead of " + entry.mSize);
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Corrupted data in " + entry.mName + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new ZipException("Unsupported compression method " + entry.mMethod +
+                    " of " + entry.mName);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if (crc.getValue() != entry.mCrc) {
+            throw new ZipException("CRC mismatch in " + entry.mName);
+        }
+        return data;
+    }
+
+    /**
+     * Read the data of all the entries and compare it with the recorded CRCs, using
+     * all the cores. It's a lot faster than checking the signature of the file and
+     * finds corrupted packages before that.
+     *
+     * @throws ZipException with the name of the first damaged entry found
+     */
+    public void checkEntries() throws IOException {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Entry> entries = new ArrayList<>();
+            List<List<Future<Long>>> crcs = new ArrayList<>();
+            for (Entry entry : mEntries.values()) {
+                entries.add(entry);
+                crcs.add(submitCrc(executor, entry, getDataOffset(entry)));
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                long crc = 0;
+                long position = 0;
+                for (Future<Long> chunk : crcs.get(i)) {
+                    // Only stored entries are split, in chunks of known size
+                    final long length = Math.min(CHECK_CHUNK_SIZE, entry.mSize - position);
+                    crc = position == 0 ? chunk.get() : combineCrc(crc, chunk.get(), length);
+                    position += length;
+                }
+                if (crc != entry.mCrc) {
+                    throw new ZipException("CRC mismatch in " + entry.mName);
+                }
+            }
+            Log.d(TAG, "Checked " + entries.size() + " entries of " + mFile.getName() +
+                    " with " + threads + " threads");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Check interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<Future<Long>> submitCrc(ExecutorService executor, Entry entry, long offset)
+            throws ZipException {
+        List<Future<Long>> chunks = new ArrayList<>();
+        if (entry.mMethod == METHOD_STORED) {
+            if (entry.mSize != entry.mCompressedSize) {
+                throw new ZipException("Invalid size of stored entry " + entry.mName);
+            }
+            long position = 0;
+            do {
+                final long start = offset + position;
+                final long length = Math.min(CHECK_CHUNK_SIZE, entry.mSize - position);
+                chunks.add(executor.submit(() -> computeStoredCrc(start, length)));
+                position += length;
+            } while (position < entry.mSize);
+        } else if (entry.mMethod == METHOD_DEFLATED) {
+            chunks.add(executor.submit(() -> computeDeflatedCrc(entry, offset)));
+        } else {
+            throw new ZipException("Unsupported compression method " + entry.mMethod +
+                    " of " + entry.mName);
+        }
+        return chunks;
+    }
+
+    private long computeStoredCrc(long start, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = map(start, length);
+        // Limited to a slice at a time, to notice interruptions
+        while (buffer.position() < buffer.capacity()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Check interrupted");
+            }
+            buffer.limit(Math.min(buffer.position() + CHECK_BUFFER_SIZE, buffer.capacity()));
+            crc.update(buffer);
+        }
+        return crc.getValue();
+    }
+
+    private long computeDeflatedCrc(Entry entry, long offset) throws IOException {
+        CRC32 crc = new CRC32();
+        Inflater inflater = new Inflater(true);
+        long size = 0;
+        try (InputStream in = new InflaterInputStream(
+                new ChannelInputStream(offset, entry.mCompressedSize), inflater,
+                CHECK_BUFFER_SIZE)) {
+            byte[] buffer = new byte[CHECK_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+                size += count;
+            }
+        } catch (ZipException e) {
+            throw new ZipException("Corrupted data in " + entry.mName + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        if (size != entry.mSize) {
+            throw new ZipException("Size mismatch in " + entry.mName + ", " + size +
+                    " bytes instead of " + entry.mSize);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Reads a region of the file without moving the shared position, so that
+     * several threads can read at once
+     */
+    private class ChannelInputStream extends InputStream {
+        private long mPosition;
+        private final long mEnd;
+
+        private ChannelInputStream(long start, long length) {
+            mPosition = start;
+            mEnd = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Check interrupted");
+            }
+            if (mPosition >= mEnd) {
+                return -1;
+            }
+            len = (int) Math.min(len, mEnd - mPosition);
+            int count = mChannel.read(ByteBuffer.wrap(b, off, len), mPosition);
+            if (count > 0) {
+                mPosition += count;
+            }
+            return count;
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        final int tailLength = (int) Math.min(mLength,
+                ZIP64_LOCATOR_SIZE + EOCD_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = map(mLength - tailLength, tailLength);
+        int eocd = findEndOfCentralDirectory(tail);
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found, truncated file?");
+        }
+        long count = getUnsignedShort(tail, eocd + 10);
+        long size = getUnsignedInt(tail, eocd + 12);
+        long offset = getUnsignedInt(tail, eocd + 16);
+        if (count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+            final int locator = eocd - ZIP64_LOCATOR_SIZE;
+            if (locator < 0 || tail.getInt(locator) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new ZipException("ZIP64 locator not found");
+            }
+            final long zip64Offset = tail.getLong(locator + 8);
+            if (zip64Offset < 0 || zip64Offset + ZIP64_EOCD_SIZE > mLength) {
+                throw new ZipException("Invalid ZIP64 end of central directory offset");
+            }
+            ByteBuffer zip64 = read(zip64Offset, ZIP64_EOCD_SIZE);
+            if (zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new ZipException("Invalid ZIP64 end of central directory");
+            }
+            count = zip64.getLong(32);
+            size = zip64.getLong(40);
+            offset = zip64.getLong(48);
+        }
+        if (size < 0 || size > MAX_CENTRAL_DIRECTORY_SIZE || offset < 0 ||
+                offset + size > mLength) {
+            throw new ZipException("Invalid central directory, " + size + " bytes at " + offset);
+        }
+        mCentralDirectoryOffset = offset;
+        parseCentralDirectory(map(offset, size), count);
+    }
+
+    private void parseCentralDirectory(ByteBuffer directory, long count) throws ZipException {
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_SIZE > directory.limit() ||
+                    directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory header at " + position);
+            }
+            Entry entry = new Entry();
+            entry.mMethod = getUnsignedShort(directory, position + 10);
+            entry.mCrc = getUnsignedInt(directory, position + 16);
+            entry.mCompressedSize = getUnsignedInt(directory, position + 20);
+            entry.mSize = getUnsignedInt(directory, position + 24);
+            final int nameLength = getUnsignedShort(directory, position + 28);
+            final int extraLength = getUnsignedShort(directory, position + 30);
+            final int commentLength = getUnsignedShort(directory, position + 32);
+            entry.mHeaderOffset = getUnsignedInt(directory, position + 42);
+            final int nameOffset = position + CENTRAL_HEADER_SIZE;
+            if (nameOffset + nameLength + extraLength > directory.limit()) {
+                throw new ZipException("Truncated central directory");
+            }
+            byte[] name = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = directory.get(nameOffset + j);
+            }
+            entry.mName = new String(name, StandardCharsets.UTF_8);
+            readZip64Extra(directory, nameOffset + nameLength, extraLength, entry);
+            if (entry.mHeaderOffset < 0 ||
+                    entry.mHeaderOffset + LOCAL_HEADER_SIZE > mCentralDirectoryOffset) {
+                throw new ZipException("Invalid local header offset of " + entry.mName);
+            }
+            mEntries.put(entry.mName, entry);
+            position = nameOffset + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Replace the values that don't fit the regular headers with the ones of the
+     * ZIP64 extra field, which only contains those, in order
+     */
+    private static void readZip64Extra(ByteBuffer directory, int start, int length,
+            Entry entry) throws ZipException {
+        final int end = start + length;
+        int position = start;
+        while (position + 4 <= end) {
+            final int id = getUnsignedShort(directory, position);
+            final int size = getUnsignedShort(directory, position + 2);
+            position += 4;
+            if (id == ZIP64_EXTRA_ID) {
+                final int fieldEnd = Math.min(position + size, end);
+                if (entry.mSize == 0xffffffffL) {
+                    entry.mSize = getZip64Value(directory, position, fieldEnd);
+                    position += 8;
+                }
+                if (entry.mCompressedSize == 0xffffffffL) {
+                    entry.mCompressedSize = getZip64Value(directory, position, fieldEnd);
+                    position += 8;
+                }
+                if (entry.mHeaderOffset == 0xffffffffL) {
+                    entry.mHeaderOffset = getZip64Value(directory, position, fieldEnd);
+                }
+                return;
+            }
+            position += size;
+        }
+    }
+
+    private static long getZip64Value(ByteBuffer buffer, int position, int end)
+            throws ZipException {
+        if (position + 8 > end) {
+            throw new ZipException("Truncated ZIP64 extra field");
+        }
+        return buffer.getLong(position);
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer tail) {
+        // The record is followed by the comment, nothing else
+        for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE &&
+                    i + EOCD_SIZE + getUnsignedShort(tail, i + 20) == tail.limit()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Map a region of the file, for the regions that are too large to be copied
+     */
+    private ByteBuffer map(long position, long length) throws IOException {
+        if (position < 0 || position + length > mLength) {
+            throw new ZipException("Unexpected end of file");
+        }
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, position, length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Copy a few bytes of the file, for the headers that aren't worth a mapping
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int getUnsignedShort(ByteBuffer buffer, int position) {
+        return buffer.getShort(position) & 0xffff;
+    }
+
+    private static long getUnsignedInt(ByteBuffer buffer, int position) {
+        return buffer.getInt(position) & 0xffffffffL;
+    }
+
+    /**
+     * Get the CRC of two consecutive blocks of data from the CRCs of each, as done by
+     * crc32_combine() of zlib
+     *
+     * @param length2 the length of the second block
+     */
+    private static long combineCrc(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // The operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // Two zero bits, then four
+        squareGf2Matrix(even, odd);
+        squareGf2Matrix(odd, even);
+        // Apply length2 zero bytes to crc1, the first square gives eight zero bits
+        do {
+            squareGf2Matrix(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = multiplyGf2Matrix(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            squareGf2Matrix(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = multiplyGf2Matrix(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long multiplyGf2Matrix(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void squareGf2Matrix(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = multiplyGf2Matrix(matrix, matrix[n]);
+        }
+    }
+}
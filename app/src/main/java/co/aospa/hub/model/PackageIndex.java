@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What we need to know about the content of a downloaded package, read once when
+ * it's verified so that the package doesn't need to be opened again to find out
+ */
+public class PackageIndex {
+
+    public static class Entry {
+        private String mName;
+        private int mMethod;
+        private long mCompressedSize;
+        private long mSize;
+
+        public String getName() {
+            return mName;
+        }
+
+        public void setName(String name) {
+            mName = name;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public void setMethod(int method) {
+            mMethod = method;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public void setCompressedSize(long compressedSize) {
+            mCompressedSize = compressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public void setSize(long size) {
+            mSize = size;
+        }
+    }
+
+    private boolean mAB;
+    private long mPayloadOffset = -1;
+    private long mPayloadSize = -1;
+    private String[] mPayloadProperties;
+    private long mPostTimestamp = -1;
+    private List<Entry> mEntries = new ArrayList<>();
+
+    public boolean isAB() {
+        return mAB;
+    }
+
+    public void setAB(boolean ab) {
+        mAB = ab;
+    }
+
+    /**
+     * @return the offset of payload.bin in the package, -1 if it can't be read in
+     *         place because it's compressed or missing
+     */
+    public long getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public void setPayloadOffset(long payloadOffset) {
+        mPayloadOffset = payloadOffset;
+    }
+
+    /**
+     * @return the size of payload.bin, -1 if it can't be read in place
+     */
+    public long getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    public void setPayloadSize(long payloadSize) {
+        mPayloadSize = payloadSize;
+    }
+
+    /**
+     * @return the lines of payload_properties.txt, null if the package doesn't have it
+     */
+    public String[] getPayloadProperties() {
+        return mPayloadProperties;
+    }
+
+    public void setPayloadProperties(String[] payloadProperties) {
+        mPayloadProperties = payloadProperties;
+    }
+
+    /**
+     * @return the build date of the target build, -1 if unknown
+     */
+    public long getPostTimestamp() {
+        return mPostTimestamp;
+    }
+
+    public void setPostTimestamp(long postTimestamp) {
+        mPostTimestamp = postTimestamp;
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    public void setEntries(List<Entry> entries) {
+        mEntries = entries;
+    }
+}
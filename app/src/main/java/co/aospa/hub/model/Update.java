@@ -20,15 +20,22 @@ import java.io.File;
 public class Update extends UpdateBase implements UpdateInfo {
     public static final String LOCAL_ID = "local";
 
+    public static final int PACKAGE_TYPE_UNKNOWN = 0;
+    public static final int PACKAGE_TYPE_AB = 1;
+    public static final int PACKAGE_TYPE_NON_AB = 2;
+
     private UpdateStatus mStatus = UpdateStatus.UNKNOWN;
     private int mPersistentStatus = UpdateStatus.Persistent.UNKNOWN;
     private File mFile;
     private int mProgress;
     private long mEta;
     private long mSpeed;
+    private long mSpeedLimit;
     private int mInstallProgress;
     private boolean mAvailableOnline;
     private boolean mIsFinalizing;
+    private int mPackageType = PACKAGE_TYPE_UNKNOWN;
+    private PackageIndex mPackageIndex;
 
     public Update() {
     }
@@ -41,9 +48,12 @@ public class Update extends UpdateBase implements UpdateInfo {
         mProgress = update.getProgress();
         mEta = update.getEta();
         mSpeed = update.getSpeed();
+        mSpeedLimit = update.getSpeedLimit();
         mInstallProgress = update.getInstallProgress();
         mAvailableOnline = update.getAvailableOnline();
         mIsFinalizing = update.getFinalizing();
+        mPackageType = update.getPackageType();
+        mPackageIndex = update.getPackageIndex();
     }
 
     @Override
@@ -100,6 +110,15 @@ public class Update extends UpdateBase implements UpdateInfo {
         mSpeed = speed;
     }
 
+    @Override
+    public long getSpeedLimit() {
+        return mSpeedLimit;
+    }
+
+    public void setSpeedLimit(long speedLimit) {
+        mSpeedLimit = speedLimit;
+    }
+
     @Override
     public int getInstallProgress() {
         return mInstallProgress;
@@ -126,4 +145,22 @@ public class Update extends UpdateBase implements UpdateInfo {
     public void setFinalizing(boolean finalizing) {
         mIsFinalizing = finalizing;
     }
+
+    @Override
+    public int getPackageType() {
+        return mPackageType;
+    }
+
+    public void setPackageType(int packageType) {
+        mPackageType = packageType;
+    }
+
+    @Override
+    public PackageIndex getPackageIndex() {
+        return mPackageIndex;
+    }
+
+    public void setPackageIndex(PackageIndex packageIndex) {
+        mPackageIndex = packageIndex;
+    }
 }
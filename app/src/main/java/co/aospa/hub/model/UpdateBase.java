@@ -15,6 +15,9 @@
  */
 package co.aospa.hub.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class UpdateBase implements UpdateBaseInfo {
 
     private String mName;
@@ -24,6 +27,8 @@ public class UpdateBase implements UpdateBaseInfo {
     private String mType;
     private String mVersion;
     private long mFileSize;
+    private String mSha256;
+    private List<UpdatePackage> mIncrementals = new ArrayList<>();
 
     public UpdateBase() {
     }
@@ -36,6 +41,8 @@ public class UpdateBase implements UpdateBaseInfo {
         mType = update.getType();
         mVersion = update.getVersion();
         mFileSize = update.getFileSize();
+        mSha256 = update.getSha256();
+        mIncrementals = new ArrayList<>(update.getIncrementals());
     }
 
     @Override
@@ -100,4 +107,22 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setFileSize(long fileSize) {
         mFileSize = fileSize;
     }
+
+    @Override
+    public String getSha256() {
+        return mSha256;
+    }
+
+    public void setSha256(String sha256) {
+        mSha256 = sha256;
+    }
+
+    @Override
+    public List<UpdatePackage> getIncrementals() {
+        return mIncrementals;
+    }
+
+    public void setIncrementals(List<UpdatePackage> incrementals) {
+        mIncrementals = incrementals;
+    }
 }
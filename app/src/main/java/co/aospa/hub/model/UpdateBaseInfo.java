@@ -15,6 +15,8 @@
  */
 package co.aospa.hub.model;
 
+import java.util.List;
+
 public interface UpdateBaseInfo {
     String getName();
 
@@ -29,4 +31,8 @@ public interface UpdateBaseInfo {
     String getDownloadUrl();
 
     long getFileSize();
+
+    String getSha256();
+
+    List<UpdatePackage> getIncrementals();
 }
@@ -32,9 +32,21 @@ public interface UpdateInfo extends UpdateBaseInfo {
 
     long getSpeed();
 
+    long getSpeedLimit();
+
     int getInstallProgress();
 
     boolean getAvailableOnline();
 
     boolean getFinalizing();
+
+    /**
+     * @return one of the Update.PACKAGE_TYPE_* values
+     */
+    int getPackageType();
+
+    /**
+     * @return what's in the downloaded package, null if it wasn't verified yet
+     */
+    PackageIndex getPackageIndex();
 }
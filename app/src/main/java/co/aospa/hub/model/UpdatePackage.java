@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.model;
+
+/**
+ * An incremental package, which only applies on top of the build it was generated from
+ */
+public class UpdatePackage {
+
+    private String mName;
+    private String mDownloadUrl;
+    private long mFileSize;
+    private String mSha256;
+    private long mSourceTimestamp;
+    private String mSourceIncremental;
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setName(String name) {
+        mName = name;
+    }
+
+    public String getDownloadUrl() {
+        return mDownloadUrl;
+    }
+
+    public void setDownloadUrl(String downloadUrl) {
+        mDownloadUrl = downloadUrl;
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        mFileSize = fileSize;
+    }
+
+    public String getSha256() {
+        return mSha256;
+    }
+
+    public void setSha256(String sha256) {
+        mSha256 = sha256;
+    }
+
+    /**
+     * @return the build date of the source build, as in ro.build.date.utc
+     */
+    public long getSourceTimestamp() {
+        return mSourceTimestamp;
+    }
+
+    public void setSourceTimestamp(long sourceTimestamp) {
+        mSourceTimestamp = sourceTimestamp;
+    }
+
+    /**
+     * @return the incremental version of the source build, null if unknown
+     */
+    public String getSourceIncremental() {
+        return mSourceIncremental;
+    }
+
+    public void setSourceIncremental(String sourceIncremental) {
+        mSourceIncremental = sourceIncremental;
+    }
+
+    /**
+     * Check whether the package can be installed on top of the given build. The
+     * incremental version identifies the build more precisely, so it's preferred.
+     */
+    public boolean appliesTo(long buildTimestamp, String buildIncremental) {
+        if (mSourceIncremental != null && !mSourceIncremental.isEmpty()) {
+            return mSourceIncremental.equals(buildIncremental);
+        }
+        return mSourceTimestamp > 0 && mSourceTimestamp == buildTimestamp;
+    }
+}
@@ -17,10 +17,12 @@ package co.aospa.hub.model;
 
 public enum UpdateStatus {
     UNKNOWN,
+    QUEUED,
     STARTING,
     DOWNLOADING,
     PAUSED,
     PAUSED_ERROR,
+    NOT_ENOUGH_SPACE,
     DELETED,
     VERIFYING,
     VERIFIED,
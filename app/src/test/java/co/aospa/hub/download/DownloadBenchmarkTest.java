@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads files from a local server that behaves like a slow, unreliable or
+ * unusual one and reports the throughput, the time to the first byte and whether
+ * interrupted downloads resumed where they stopped. Every download must produce
+ * the exact file, the timings are only reported.
+ */
+public class DownloadBenchmarkTest {
+
+    private static final int MIB = 1024 * 1024;
+    private static final long TIMEOUT_S = 60;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private TestHttpServer mServer;
+
+    private static class Result {
+        private final CountDownLatch mDoneSignal = new CountDownLatch(1);
+        private volatile boolean mSuccess;
+        private volatile boolean mCancelled;
+        private volatile long mStart;
+        private volatile long mTtfbMs = -1;
+        private volatile long mElapsedMs;
+        private volatile String mSha256;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new TestHttpServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void singleConnection() throws Exception {
+        byte[] content = createContent(16 * MIB);
+        mServer.serve("/update.zip", content);
+        File destination = mFolder.newFile("update.zip");
+
+        Result result = download(newBuilder("/update.zip", destination), false);
+
+        assertDownloaded(content, destination, result);
+        report("single connection", content.length, result, null);
+    }
+
+    @Test
+    public void latencyAndBandwidthCap() throws Exception {
+        byte[] content = createContent(64 * MIB);
+        mServer.serve("/update.zip", content)
+                .setLatency(100)
+                .setBandwidth(16 * MIB);
+
+        File single = mFolder.newFile("single.zip");
+        Result singleResult = download(newBuilder("/update.zip", single), false);
+        assertDownloaded(content, single, singleResult);
+        report("100 ms, 16 MiB/s, 1 segment", content.length, singleResult, null);
+
+        File segmented = mFolder.newFile("segmented.zip");
+        Result segmentedResult = download(newBuilder("/update.zip", segmented)
+                .setSegments(4), false);
+        assertDownloaded(content, segmented, segmentedResult);
+        report("100 ms, 16 MiB/s, 4 segments", content.length, segmentedResult, null);
+
+        assertTrue(singleResult.mTtfbMs >= 100);
+        // The cap is per connection, splitting the file must pay off
+        assertTrue(segmentedResult.mElapsedMs < singleResult.mElapsedMs);
+    }
+
+    @Test
+    public void resumesAfterMidStreamReset() throws Exception {
+        byte[] content = createContent(16 * MIB);
+        TestHttpServer.Route route = mServer.serve("/update.zip", content)
+                .setResets(6 * MIB, 1);
+        File destination = mFolder.newFile("update.zip");
+
+        Result result = download(newBuilder("/update.zip", destination), false);
+
+        assertDownloaded(content, destination, result);
+        List<String> ranges = route.getRanges();
+        assertEquals(2, ranges.size());
+        // The chunks completed before the reset are kept
+        String resumeRange = ranges.get(1);
+        assertEquals("bytes=" + DownloadJournal.CHUNK_SIZE + "-" + (content.length - 1),
+                resumeRange);
+        report("reset after 6 MiB", content.length, result, resumeRange);
+    }
+
+    @Test
+    public void resumesWithNewClient() throws Exception {
+        byte[] content = createContent(16 * MIB);
+        TestHttpServer.Route route = mServer.serve("/update.zip", content)
+                .setBandwidth(8 * MIB);
+        File destination = mFolder.newFile("update.zip");
+
+        final CountDownLatch progressSignal = new CountDownLatch(1);
+        DownloadClient.Builder builder = newBuilder("/update.zip", destination)
+                .setProgressListener((bytesRead, contentLength, speed, eta, speedLimit) -> {
+                    if (bytesRead >= 6 * MIB) {
+                        progressSignal.countDown();
+                    }
+                });
+        Result paused = new Result();
+        DownloadClient client = builder.setDownloadCallback(newCallback(paused)).build();
+        client.start();
+        assertTrue(progressSignal.await(TIMEOUT_S, TimeUnit.SECONDS));
+        client.cancel();
+        assertTrue(paused.mDoneSignal.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue(paused.mCancelled);
+
+        route.setBandwidth(0);
+        Result result = download(newBuilder("/update.zip", destination), true);
+
+        assertDownloaded(content, destination, result);
+        List<String> ranges = route.getRanges();
+        String resumeRange = ranges.get(ranges.size() - 1);
+        assertNotNull(resumeRange);
+        final long resumeOffset = Long.parseLong(
+                resumeRange.substring("bytes=".length(), resumeRange.indexOf('-')));
+        assertTrue(resumeOffset > 0);
+        // Only what was left is downloaded by the second client
+        report("paused after 6 MiB", content.length - resumeOffset, result, resumeRange);
+    }
+
+    @Test
+    public void followsRedirectChainToFastestMirror() throws Exception {
+        byte[] content = createContent(16 * MIB);
+        TestHttpServer.Route route = mServer.serve("/data/update.zip", content);
+        TestHttpServer.Route slowRoute = mServer.serve("/slow/update.zip", content)
+                .setLatency(1500);
+        mServer.redirect("/update.zip", "/hop/update.zip",
+                TestHttpServer.duplicateLink(mServer.getUrl("/slow/update.zip"), 1),
+                TestHttpServer.duplicateLink(mServer.getUrl("/fast/update.zip"), 2));
+        mServer.redirect("/hop/update.zip", mServer.getUrl("/data/update.zip"));
+        mServer.redirect("/fast/update.zip", mServer.getUrl("/hop/update.zip"));
+        File destination = mFolder.newFile("update.zip");
+
+        Result result = download(newBuilder("/update.zip", destination)
+                .setUseDuplicateLinks(true), false);
+
+        assertDownloaded(content, destination, result);
+        // Only probed
+        assertEquals(1, slowRoute.getRanges().size());
+        assertTrue(route.getRanges().size() >= 2);
+        report("3xx chain, 3 mirrors", content.length, result, null);
+    }
+
+    @Test
+    public void fallsBackToOneConnectionWithoutRanges() throws Exception {
+        byte[] content = createContent(64 * MIB);
+        TestHttpServer.Route route = mServer.serve("/update.zip", content)
+                .setIgnoreRanges(true);
+        File destination = mFolder.newFile("update.zip");
+
+        Result result = download(newBuilder("/update.zip", destination).setSegments(4), false);
+
+        assertDownloaded(content, destination, result);
+        assertEquals(1, route.getRanges().size());
+        report("200 instead of 206", content.length, result, null);
+    }
+
+    @Test
+    public void startsOverWhenResumeGetsWholeFile() throws Exception {
+        byte[] content = createContent(16 * MIB);
+        TestHttpServer.Route route = mServer.serve("/update.zip", content)
+                .setIgnoreRanges(true)
+                .setResets(6 * MIB, 1);
+        File destination = mFolder.newFile("update.zip");
+
+        Result result = download(newBuilder("/update.zip", destination), false);
+
+        assertDownloaded(content, destination, result);
+        List<String> ranges = route.getRanges();
+        assertEquals(2, ranges.size());
+        assertNull(ranges.get(0));
+        assertNotNull(ranges.get(1));
+        report("reset, then 200 to the resume", content.length, result, ranges.get(1));
+    }
+
+    private DownloadClient.Builder newBuilder(String path, File destination) {
+        return new DownloadClient.Builder()
+                .setUrl(mServer.getUrl(path))
+                .setDestination(destination)
+                .setComputeSha256(true)
+                .setRetryPolicy(new RetryPolicy(3, 50, 200));
+    }
+
+    private static DownloadClient.DownloadCallback newCallback(final Result result) {
+        result.mStart = System.nanoTime();
+        return new DownloadClient.DownloadCallback() {
+            @Override
+            public void onResponse(DownloadClient.Headers headers) {
+                result.mTtfbMs = (System.nanoTime() - result.mStart) / 1000000;
+            }
+
+            @Override
+            public void onSuccess() {
+                result.mElapsedMs = (System.nanoTime() - result.mStart) / 1000000;
+                result.mSuccess = true;
+                result.mDoneSignal.countDown();
+            }
+
+            @Override
+            public void onFailure(boolean cancelled) {
+                result.mCancelled = cancelled;
+                result.mDoneSignal.countDown();
+            }
+
+            @Override
+            public void onStall() {
+            }
+        };
+    }
+
+    private static Result download(DownloadClient.Builder builder, boolean resume)
+            throws Exception {
+        Result result = new Result();
+        DownloadClient client = builder.setDownloadCallback(newCallback(result)).build();
+        if (resume) {
+            client.resume();
+        } else {
+            client.start();
+        }
+        assertTrue("Timed out", result.mDoneSignal.await(TIMEOUT_S, TimeUnit.SECONDS));
+        result.mSha256 = client.getSha256();
+        return result;
+    }
+
+    private static void assertDownloaded(byte[] content, File destination, Result result)
+            throws Exception {
+        assertTrue("Download failed", result.mSuccess);
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals(sha256(content), result.mSha256);
+    }
+
+    private static void report(String scenario, long size, Result result, String resumeRange) {
+        final double throughput = (double) size / MIB * 1000 / Math.max(result.mElapsedMs, 1);
+        System.out.println(String.format(Locale.US, "%-32s %8.1f MiB/s  TTFB %5d ms%s",
+                scenario, throughput, result.mTtfbMs,
+                resumeRange != null ? "  resumed with " + resumeRange : ""));
+    }
+
+    private static byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private static String sha256(byte[] content) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks how segments copy a reply to the file: without allocating anything for
+ * every chunk once they're going, and with a window that follows the speed of the
+ * connection.
+ */
+public class SegmentThreadTest {
+
+    private static final int MIB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Serves length bytes of a known pattern, at most maxRead bytes per read once
+     * fastBytes were served
+     */
+    private static class PatternInputStream extends InputStream {
+        private final long mLength;
+        private final long mFastBytes;
+        private final int mMaxRead;
+        private long mPosition;
+        private int mLargestRead;
+
+        private PatternInputStream(long length, long fastBytes, int maxRead) {
+            mLength = length;
+            mFastBytes = fastBytes;
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public int read() {
+            if (mPosition == mLength) {
+                return -1;
+            }
+            return getByte(mPosition++) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPosition == mLength) {
+                return -1;
+            }
+            mLargestRead = Math.max(mLargestRead, len);
+            int count = (int) Math.min(len, mLength - mPosition);
+            if (mPosition >= mFastBytes) {
+                count = Math.min(count, mMaxRead);
+            }
+            for (int i = 0; i < count; i++) {
+                b[off + i] = getByte(mPosition++);
+            }
+            return count;
+        }
+    }
+
+    private static byte getByte(long position) {
+        return (byte) (position * 31 + (position >> 8));
+    }
+
+    private static HttpURLConnection newConnection(final InputStream inputStream)
+            throws IOException {
+        return new HttpURLConnection(new URL("http://localhost/update.zip")) {
+            @Override
+            public InputStream getInputStream() {
+                return inputStream;
+            }
+
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+        };
+    }
+
+    private static HttpURLConnectionClient.SegmentThread newSegment(InputStream inputStream,
+            FileChannel channel, MessageDigest digest, long length) throws IOException {
+        return new HttpURLConnectionClient.SegmentThread(newConnection(inputStream),
+                new URL("http://localhost/update.zip"), null, channel, null, digest, null,
+                0, length, new CountDownLatch(1));
+    }
+
+    /**
+     * @return the bytes allocated by the current thread to copy length bytes
+     */
+    private long measureTransfer(com.sun.management.ThreadMXBean threads, FileChannel channel,
+            MessageDigest digest, long length) throws IOException {
+        HttpURLConnectionClient.SegmentThread segment = newSegment(
+                new PatternInputStream(length, length, 0), channel, digest, length);
+        final long thread = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(thread);
+        segment.transfer();
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    @Test
+    public void transferDoesNotAllocatePerChunk() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof
+                com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        File file = mFolder.newFile("update.zip");
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // Let the runtime set up whatever it caches for the thread
+            for (int i = 0; i < 3; i++) {
+                measureTransfer(threads, channel, digest, 16 * MIB);
+            }
+            long small = measureTransfer(threads, channel, digest, 4 * MIB);
+            long large = measureTransfer(threads, channel, digest, 64 * MIB);
+            // The large transfer writes hundreds more windows, even a single object
+            // for each of them would show
+            long extra = large - small;
+            assertTrue("Allocated " + extra + " more bytes for 60 more MiB", extra < 1024);
+        }
+    }
+
+    @Test
+    public void windowGrowsOnFastConnection() throws Exception {
+        final long length = 8 * MIB;
+        File file = mFolder.newFile("update.zip");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            HttpURLConnectionClient.SegmentThread segment = newSegment(
+                    new PatternInputStream(length, length, 0), channel, null, length);
+            assertEquals(HttpURLConnectionClient.MIN_BUFFER_SIZE, segment.getWindow());
+            segment.transfer();
+            assertEquals(HttpURLConnectionClient.MAX_BUFFER_SIZE, segment.getWindow());
+        }
+        assertPattern(file, length);
+    }
+
+    @Test
+    public void windowShrinksWhenConnectionSlowsDown() throws Exception {
+        final long length = 8 * MIB;
+        File file = mFolder.newFile("update.zip");
+        PatternInputStream inputStream = new PatternInputStream(length, 2 * MIB, 1024);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            HttpURLConnectionClient.SegmentThread segment = newSegment(
+                    inputStream, channel, null, length);
+            segment.transfer();
+            assertEquals(HttpURLConnectionClient.MAX_BUFFER_SIZE, inputStream.mLargestRead);
+            assertEquals(HttpURLConnectionClient.MIN_BUFFER_SIZE, segment.getWindow());
+        }
+        assertPattern(file, length);
+    }
+
+    private static void assertPattern(File file, long length) throws IOException {
+        byte[] expected = new byte[(int) length];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = getByte(i);
+        }
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+    }
+}
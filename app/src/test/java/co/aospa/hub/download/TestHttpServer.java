@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2026 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A small HTTP/1.1 server for the tests of the download code. It serves files from
+ * memory, with range requests and keep-alive connections, and can misbehave the way
+ * real servers and networks do: answer late, send slowly, reset the connection in
+ * the middle of a reply, redirect through mirrors or ignore ranges.
+ */
+class TestHttpServer implements Closeable {
+
+    private static final int PIECE_SIZE = 16 * 1024;
+    private static final long RESET_DELAY_MS = 200;
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    /**
+     * A file served by the server and how it's served
+     */
+    static class Route {
+        private final byte[] mContent;
+        private final String mETag;
+        private final List<String> mRanges = Collections.synchronizedList(new ArrayList<>());
+        private volatile long mLatencyMs;
+        private volatile long mBandwidth;
+        private volatile boolean mIgnoreRanges;
+        private long mResetAfter = -1;
+        private int mResets;
+
+        private Route(byte[] content, String eTag) {
+            mContent = content;
+            mETag = eTag;
+        }
+
+        /**
+         * Wait before answering every request
+         */
+        Route setLatency(long latencyMs) {
+            mLatencyMs = latencyMs;
+            return this;
+        }
+
+        /**
+         * Limit the throughput of every reply
+         *
+         * @param bandwidth the limit in bytes per second, 0 for none
+         */
+        Route setBandwidth(long bandwidth) {
+            mBandwidth = bandwidth;
+            return this;
+        }
+
+        /**
+         * Reply with the whole file and a 200 to range requests
+         */
+        Route setIgnoreRanges(boolean ignoreRanges) {
+            mIgnoreRanges = ignoreRanges;
+            return this;
+        }
+
+        /**
+         * Reset the connection once the given number of bytes of a reply were sent,
+         * for the given number of replies
+         */
+        synchronized Route setResets(long afterBytes, int replies) {
+            mResetAfter = afterBytes;
+            mResets = replies;
+            return this;
+        }
+
+        /**
+         * @return the Range header of every request received so far, null for the
+         *         requests without one
+         */
+        List<String> getRanges() {
+            synchronized (mRanges) {
+                return new ArrayList<>(mRanges);
+            }
+        }
+
+        private synchronized long takeReset() {
+            if (mResets <= 0) {
+                return -1;
+            }
+            mResets--;
+            return mResetAfter;
+        }
+    }
+
+    private static class Redirect {
+        private final int mCode;
+        private final String mLocation;
+        private final List<String> mLinks;
+
+        private Redirect(int code, String location, List<String> links) {
+            mCode = code;
+            mLocation = location;
+            mLinks = links;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Map<String, Route> mRoutes = new ConcurrentHashMap<>();
+    private final Map<String, Redirect> mRedirects = new ConcurrentHashMap<>();
+    private final Set<Socket> mSockets = new HashSet<>();
+
+    TestHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mExecutor.execute(this::accept);
+    }
+
+    String getUrl(String path) {
+        return "http://" + mServerSocket.getInetAddress().getHostAddress() + ":" +
+                mServerSocket.getLocalPort() + path;
+    }
+
+    Route serve(String path, byte[] content) {
+        Route route = new Route(content, "\"" + Arrays.hashCode(content) + "\"");
+        mRoutes.put(path, route);
+        return route;
+    }
+
+    /**
+     * Answer the requests for path with a 302 to location
+     *
+     * @param links the values of the Link headers to add to the reply
+     */
+    void redirect(String path, String location, String... links) {
+        mRedirects.put(path, new Redirect(302, location, Arrays.asList(links)));
+    }
+
+    /**
+     * @return the value of a Link header announcing a mirror of the file
+     */
+    static String duplicateLink(String url, int priority) {
+        return "<" + url + ">; rel=duplicate; pri=" + priority;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void accept() {
+        try {
+            for (;;) {
+                final Socket socket = mServerSocket.accept();
+                synchronized (mSockets) {
+                    mSockets.add(socket);
+                }
+                mExecutor.execute(() -> handleConnection(socket));
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            for (;;) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+                Map<String, String> headers = new HashMap<>();
+                for (String line; (line = readLine(in)) != null && !line.isEmpty();) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                String[] request = requestLine.split(" ");
+                if (request.length < 2 || !handleRequest(s, out, request[1], headers)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            synchronized (mSockets) {
+                mSockets.remove(socket);
+            }
+        }
+    }
+
+    /**
+     * @return false if the connection was reset
+     */
+    private boolean handleRequest(Socket socket, OutputStream out, String path,
+            Map<String, String> headers) throws IOException {
+        Redirect redirect = mRedirects.get(path);
+        if (redirect != null) {
+            StringBuilder reply = new StringBuilder();
+            reply.append("HTTP/1.1 ").append(redirect.mCode).append(" Found\r\n");
+            reply.append("Location: ").append(redirect.mLocation).append("\r\n");
+            for (String link : redirect.mLinks) {
+                reply.append("Link: ").append(link).append("\r\n");
+            }
+            reply.append("Content-Length: 0\r\n\r\n");
+            out.write(reply.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return true;
+        }
+
+        Route route = mRoutes.get(path);
+        if (route == null) {
+            out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            return true;
+        }
+        route.mRanges.add(headers.get("range"));
+        sleep(route.mLatencyMs);
+
+        final long length = route.mContent.length;
+        long start = 0;
+        long end = length;
+        boolean partial = false;
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        if (range != null && !route.mIgnoreRanges &&
+                (ifRange == null || ifRange.equals(route.mETag))) {
+            Matcher matcher = RANGE_PATTERN.matcher(range);
+            if (matcher.matches()) {
+                if (matcher.group(1).isEmpty()) {
+                    start = Math.max(length - Long.parseLong(matcher.group(2)), 0);
+                } else {
+                    start = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) {
+                        end = Math.min(Long.parseLong(matcher.group(2)) + 1, length);
+                    }
+                }
+                if (start >= end) {
+                    out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" +
+                            length + "\r\nContent-Length: 0\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    return true;
+                }
+                partial = true;
+            }
+        }
+
+        StringBuilder reply = new StringBuilder();
+        reply.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        reply.append("Content-Type: application/zip\r\n");
+        reply.append("Content-Length: ").append(end - start).append("\r\n");
+        reply.append("ETag: ").append(route.mETag).append("\r\n");
+        reply.append("Accept-Ranges: bytes\r\n");
+        if (partial) {
+            reply.append("Content-Range: bytes ").append(start).append('-').append(end - 1)
+                    .append('/').append(length).append("\r\n");
+        }
+        reply.append("\r\n");
+        out.write(reply.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return sendBody(socket, out, route, start, end);
+    }
+
+    private static boolean sendBody(Socket socket, OutputStream out, Route route, long start,
+            long end) throws IOException {
+        final long resetAfter = route.takeReset();
+        final long bandwidth = route.mBandwidth;
+        final long begin = System.nanoTime();
+        long sent = 0;
+        while (start + sent < end) {
+            int count = (int) Math.min(PIECE_SIZE, end - start - sent);
+            if (resetAfter >= 0 && sent + count > resetAfter) {
+                count = (int) (resetAfter - sent);
+            }
+            out.write(route.mContent, (int) (start + sent), count);
+            sent += count;
+            if (resetAfter >= 0 && sent >= resetAfter) {
+                out.flush();
+                // A RST drops what the client didn't read yet, let it catch up first
+                sleep(RESET_DELAY_MS);
+                // Close with a RST rather than a FIN
+                socket.setSoLinger(true, 0);
+                socket.close();
+                return false;
+            }
+            if (bandwidth > 0) {
+                out.flush();
+                sleep(sent * 1000 / bandwidth - (System.nanoTime() - begin) / 1000000);
+            }
+        }
+        out.flush();
+        return true;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) != '\n';) {
+            if (b < 0) {
+                return line.size() > 0 ? line.toString("ISO-8859-1") : null;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+#!/bin/sh
+
+updates_dir=/data/hub_updates
+runner=co.aospa.hub.dev.test/androidx.test.runner.AndroidJUnitRunner
+class=co.aospa.hub.misc.PackageVerifierBenchmark
+methods="recoverySystem packageVerifier packageVerifierWithEntries"
+
+if [ ! -f "$1" ]; then
+   echo "Usage: $0 ZIP [ITERATIONS]"
+   echo "Time the verification of ZIP by PackageVerifier and by a plain"
+   echo "RecoverySystem.verifyPackage(), reading ZIP from the storage every time"
+   echo
+   echo "ZIP must be signed with keys the device accepts. On test-keys builds, any zip"
+   echo "signed with 'signapk.jar -w' and the test key of the source tree works"
+   echo "The debug app and its tests must be installed first, for instance with"
+   echo "./gradlew installDebug installDebugAndroidTest"
+   exit
+fi
+zip_path=`realpath "$1"`
+iterations=${2:-3}
+
+if [ "`adb get-state 2>/dev/null`" != "device" ]; then
+    echo "No device found. Waiting for one..."
+    adb wait-for-device
+fi
+if ! adb root; then
+    echo "Could not run adbd as root"
+    exit 1
+fi
+
+if [ "`uname`" = "Darwin" ]; then
+    size=`stat -f%z "$zip_path"`
+else
+    size=`stat -c "%s" "$zip_path"`
+fi
+
+zip_path_device=$updates_dir/benchmark-`basename "$zip_path"`
+adb push "$zip_path" "$zip_path_device"
+adb shell chgrp cache "$zip_path_device"
+adb shell chmod 664 "$zip_path_device"
+
+results=`mktemp`
+i=0
+while [ $i -lt $iterations ]; do
+    for method in $methods; do
+        # Start every run with nothing of the package in the page cache
+        adb shell "sync; echo 3 > /proc/sys/vm/drop_caches"
+        elapsed=`adb shell am instrument -w -r -e package "$zip_path_device" \
+            -e class "$class#$method" $runner | tr -d '\r' | \
+            sed -n 's/^INSTRUMENTATION_STATUS: elapsed_ms=//p'`
+        if [ -z "$elapsed" ]; then
+            echo "$method failed"
+        else
+            echo "$method: $elapsed ms"
+            echo "$method $elapsed" >> "$results"
+        fi
+    done
+    i=$((i + 1))
+done
+
+echo
+awk -v size="$size" '{ sum[$1] += $2; runs[$1]++ } END {
+    for (method in sum) {
+        average = sum[method] / runs[method]
+        printf "%-28s %8.0f ms %8.1f MiB/s\n", method, average,
+                size / 1048576 * 1000 / average
+    }
+}' "$results"
+rm "$results"
+
+adb shell rm "$zip_path_device"
+
+# Exit root mode
+adb unroot